@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps each upstream to its own few threads, so one that hangs can only tie up those and
+ * requests to the others go on as usual. A call waits in a short queue when all threads of
+ * its upstream are busy, is rejected right away when the queue is full too, and is given up
+ * on once its timeout passes. Either way the caller gets null and falls back to what's
+ * cached or found locally.
+ */
+public class Bulkhead {
+
+    private static final String TAG = Bulkhead.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    // Idle threads go away, a provider at rest holds none
+    private static final long KEEP_ALIVE = 30L * 1000L;
+
+    static final Bulkhead MOKEE = new Bulkhead("mokee", 2, 4, RequestDeadline.DEFAULT_BUDGET);
+    // Placefinder calls come first in a geo request, the weather call needs time left after
+    static final Bulkhead PLACEFINDER = new Bulkhead("placefinder", 2, 4, 10L * 1000L);
+    // A weather request takes up to three calls, current, forecast and UV
+    static final Bulkhead OWM = new Bulkhead("owm", 3, 6, RequestDeadline.DEFAULT_BUDGET);
+
+    private static final Bulkhead[] sBulkheads = new Bulkhead[] { MOKEE, PLACEFINDER, OWM };
+
+    /**
+     * A call run in a bulkhead. It must give up once signal is cancelled.
+     */
+    public interface Call<T> {
+        T run(CancellationSignal signal);
+    }
+
+    private final String mName;
+    private final int mThreads;
+    private final int mQueueLimit;
+    private final long mCallTimeout;
+    private final ThreadPoolExecutor mExecutor;
+
+    private Bulkhead(final String name, int threads, int queueLimit, long callTimeout) {
+        mName = name;
+        mThreads = threads;
+        mQueueLimit = queueLimit;
+        mCallTimeout = callTimeout;
+        mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueLimit), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, TAG + "-" + name + "-" + mCount.incrementAndGet());
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns an executor for work that calls into bulkheads. Such work holds its thread
+     * while its call runs or waits in a bulkhead's queue. The executor runs coreThreads at
+     * first and queues up to queueLimit tasks beyond them; only once that queue is full does
+     * it grow, up to a thread for every call the bulkheads admit at once plus spare ones, so
+     * work for an upstream that has room gets past work stuck on one that doesn't. Past that
+     * the executor is saturated and rejects work right away. Threads go once idle.
+     */
+    public static ThreadPoolExecutor newCallerExecutor(final String name, int coreThreads,
+            int queueLimit, int spare, Bulkhead... bulkheads) {
+        int threads = spare;
+        for (Bulkhead bulkhead : bulkheads) {
+            threads += bulkhead.mThreads + bulkhead.mQueueLimit;
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(Math.min(coreThreads, threads),
+                threads, KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueLimit), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, name + "-" + mCount.incrementAndGet());
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Returns the bulkhead requests to url go through, null if it isn't one of the upstreams.
+     * Pass url as built, before EndpointSelector points it at a mirror.
+     */
+    public static Bulkhead forUrl(String url) {
+        if (url.startsWith(MoKeeWeatherApplication.URL_PLACEFINDER)) return PLACEFINDER;
+        if (url.startsWith(EndpointSelector.URL_MOKEE)) return MOKEE;
+        if (url.startsWith(EndpointSelector.URL_OWM)
+                || url.startsWith(EndpointSelector.URL_OWM_UV)) {
+            return OWM;
+        }
+        return null;
+    }
+
+    /**
+     * Runs call on one of this bulkhead's threads and waits for its result, for the call
+     * timeout of the bulkhead or timeoutMillis if shorter and not 0. Returns null right away
+     * if the bulkhead is full, and null once the wait is over; the call is then cancelled,
+     * as it is when signal is.
+     */
+    public <T> T call(final Call<T> call, CancellationSignal signal, long timeoutMillis) {
+        if (signal != null) signal.throwIfCanceled();
+        final CancellationSignal callSignal = new CancellationSignal();
+        final FutureTask<T> task = new FutureTask<>(new Callable<T>() {
+            @Override
+            public T call() {
+                return call.run(callSignal);
+            }
+        });
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            if (DEBUG) Log.d(TAG, mName + " is full, rejecting call");
+            ProviderMetrics.increment("bulkhead_" + mName + "_rejected");
+            return null;
+        }
+        if (signal != null) {
+            signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    callSignal.cancel();
+                    task.cancel(false);
+                }
+            });
+        }
+        long wait = timeoutMillis > 0 ? Math.min(timeoutMillis, mCallTimeout) : mCallTimeout;
+        try {
+            return task.get(wait, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (DEBUG) Log.d(TAG, mName + " call timed out after " + wait + "ms");
+            ProviderMetrics.increment("bulkhead_" + mName + "_timeouts");
+        } catch (CancellationException e) {
+            if (signal != null) signal.throwIfCanceled();
+        } catch (InterruptedException e) {
+            // Left for the caller, cancelling its task interrupts it
+            Thread.currentThread().interrupt();
+            if (signal != null) signal.throwIfCanceled();
+        } catch (ExecutionException e) {
+            // The call's own errors, like its cancellation, are the caller's to handle
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+        } finally {
+            if (signal != null) signal.setOnCancelListener(null);
+            if (!task.isDone()) {
+                // Aborts the connection of a call nobody waits for anymore
+                callSignal.cancel();
+                task.cancel(false);
+            }
+            // A call cancelled before it started shouldn't hold a place in the queue
+            mExecutor.remove(task);
+        }
+        return null;
+    }
+
+    public static void dump(PrintWriter pw) {
+        pw.println("Bulkheads:");
+        for (Bulkhead bulkhead : sBulkheads) {
+            ThreadPoolExecutor executor = bulkhead.mExecutor;
+            pw.println("  " + bulkhead.mName + ": " + executor.getActiveCount() + "/"
+                    + executor.getMaximumPoolSize() + " busy, " + executor.getQueue().size()
+                    + "/" + bulkhead.mQueueLimit + " queued, "
+                    + ProviderMetrics.get("bulkhead_" + bulkhead.mName + "_rejected")
+                    + " rejected, "
+                    + ProviderMetrics.get("bulkhead_" + bulkhead.mName + "_timeouts")
+                    + " timed out");
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Read-only view of the weather cache, so clients can poll the last result of a location
+ * without submitting a request. Nothing here ever goes to the network.
+ *
+ * <pre>
+ * content://org.mokee.weatherprovider.cache/weather         conditions of every location
+ * content://org.mokee.weatherprovider.cache/weather/&lt;key&gt;   conditions of one location
+ * content://org.mokee.weatherprovider.cache/forecast/&lt;key&gt;  daily forecast of one location
+ * </pre>
+ *
+ * Keys are the ones LocationKeys builds. Values are canonical: celsius, km/h, WeatherCode
+ * conditions and numeric AQI/UV levels, with uv_brief holding the upstream's own UV label
+ * when it has no level. Rows rolled forward from an earlier day's forecast
+ * have derived set to 1. Observers of a location's URI are notified whenever it is refreshed.
+ */
+public class CachedWeatherProvider extends ContentProvider {
+
+    public static final String AUTHORITY = "org.mokee.weatherprovider.cache";
+    public static final Uri WEATHER_URI = Uri.parse("content://" + AUTHORITY + "/weather");
+    public static final Uri FORECAST_URI = Uri.parse("content://" + AUTHORITY + "/forecast");
+
+    public static final String COLUMN_KEY = "location_key";
+    public static final String COLUMN_CITY = "city";
+    public static final String COLUMN_CITY_EN = "city_en";
+    public static final String COLUMN_TEMPERATURE = "temperature";
+    public static final String COLUMN_HUMIDITY = "humidity";
+    public static final String COLUMN_WIND_SPEED = "wind_speed";
+    public static final String COLUMN_WIND_DIRECTION = "wind_direction";
+    public static final String COLUMN_TODAYS_LOW = "todays_low";
+    public static final String COLUMN_TODAYS_HIGH = "todays_high";
+    public static final String COLUMN_CONDITION_CODE = "condition_code";
+    public static final String COLUMN_AQI = "aqi";
+    public static final String COLUMN_UV_LEVEL = "uv_level";
+    public static final String COLUMN_UV_BRIEF = "uv_brief";
+    public static final String COLUMN_TIMESTAMP = "timestamp";
+    public static final String COLUMN_DERIVED = "derived";
+    public static final String COLUMN_DAY = "day";
+    public static final String COLUMN_LOW = "low";
+    public static final String COLUMN_HIGH = "high";
+
+    private static final String[] WEATHER_COLUMNS = new String[] {
+            COLUMN_KEY, COLUMN_CITY, COLUMN_CITY_EN, COLUMN_TEMPERATURE, COLUMN_HUMIDITY,
+            COLUMN_WIND_SPEED, COLUMN_WIND_DIRECTION, COLUMN_TODAYS_LOW, COLUMN_TODAYS_HIGH,
+            COLUMN_CONDITION_CODE, COLUMN_AQI, COLUMN_UV_LEVEL, COLUMN_TIMESTAMP, COLUMN_DERIVED,
+            COLUMN_UV_BRIEF
+    };
+    private static final String[] FORECAST_COLUMNS = new String[] {
+            COLUMN_KEY, COLUMN_DAY, COLUMN_CONDITION_CODE, COLUMN_LOW, COLUMN_HIGH,
+            COLUMN_TIMESTAMP, COLUMN_DERIVED
+    };
+
+    private static final int MATCH_WEATHER = 1;
+    private static final int MATCH_WEATHER_KEY = 2;
+    private static final int MATCH_FORECAST_KEY = 3;
+
+    private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+    static {
+        sUriMatcher.addURI(AUTHORITY, "weather", MATCH_WEATHER);
+        sUriMatcher.addURI(AUTHORITY, "weather/*", MATCH_WEATHER_KEY);
+        sUriMatcher.addURI(AUTHORITY, "forecast/*", MATCH_FORECAST_KEY);
+    }
+
+    private WeatherSnapshotStore mSnapshotStore;
+    private boolean mRestored;
+
+    @Override
+    public boolean onCreate() {
+        final Context context = getContext();
+        mSnapshotStore = new WeatherSnapshotStore(context);
+        WeatherCache.getInstance().setSource(mSnapshotStore);
+        // Providers are created before anything can refresh the cache, so no change is missed
+        WeatherCache.getInstance().setListener(new WeatherCache.Listener() {
+            @Override
+            public void onWeatherChanged(String key, WeatherCache.Conditions conditions,
+                    WeatherCache.Forecast forecast) {
+                mSnapshotStore.save(key, conditions, forecast);
+                context.getContentResolver().notifyChange(
+                        Uri.withAppendedPath(WEATHER_URI, key), null);
+                context.getContentResolver().notifyChange(
+                        Uri.withAppendedPath(FORECAST_URI, key), null);
+            }
+
+            @Override
+            public void onWeatherEvicted(String key) {
+                mSnapshotStore.remove(key);
+            }
+        });
+        return true;
+    }
+
+    // Reading the snapshot is left to the first query, off the main thread
+    private synchronized void ensureRestored() {
+        if (mRestored) return;
+        mSnapshotStore.restoreInto(WeatherCache.getInstance());
+        mRestored = true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        ensureRestored();
+        WeatherCache cache = WeatherCache.getInstance();
+        MatrixCursor cursor;
+        switch (sUriMatcher.match(uri)) {
+            case MATCH_WEATHER:
+                cursor = new MatrixCursor(WEATHER_COLUMNS);
+                List<String> keys = cache.getKeys();
+                Collections.sort(keys);
+                for (String key : keys) {
+                    addConditions(cursor, key, cache.getConditions(key));
+                }
+                break;
+            case MATCH_WEATHER_KEY:
+                cursor = new MatrixCursor(WEATHER_COLUMNS, 1);
+                addConditions(cursor, uri.getLastPathSegment(),
+                        cache.getConditions(uri.getLastPathSegment()));
+                break;
+            case MATCH_FORECAST_KEY:
+                cursor = new MatrixCursor(FORECAST_COLUMNS);
+                String key = uri.getLastPathSegment();
+                WeatherCache.Forecast forecast = cache.getForecast(key);
+                if (forecast != null) {
+                    for (int i = 0; i < forecast.size(); i++) {
+                        cursor.addRow(new Object[] { key, i, forecast.getConditionCode(i),
+                                forecast.getLow(i), forecast.getHigh(i), forecast.timestamp,
+                                forecast.isDerived() ? 1 : 0 });
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+        ProviderMetrics.increment("provider_queries");
+        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        return cursor;
+    }
+
+    private static void addConditions(MatrixCursor cursor, String key,
+            WeatherCache.Conditions conditions) {
+        if (conditions == null) return;
+        cursor.addRow(new Object[] { key, conditions.city, conditions.cityEn,
+                conditions.temperature, conditions.humidity, conditions.windSpeed,
+                conditions.windDirection, conditions.todaysLow, conditions.todaysHigh,
+                conditions.conditionCode, conditions.aqi, conditions.uvLevel,
+                conditions.timestamp, conditions.derived ? 1 : 0, conditions.uvBrief });
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        switch (sUriMatcher.match(uri)) {
+            case MATCH_WEATHER:
+                return "vnd.android.cursor.dir/vnd." + AUTHORITY + ".weather";
+            case MATCH_WEATHER_KEY:
+                return "vnd.android.cursor.item/vnd." + AUTHORITY + ".weather";
+            case MATCH_FORECAST_KEY:
+                return "vnd.android.cursor.dir/vnd." + AUTHORITY + ".forecast";
+        }
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Read-only provider");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read-only provider");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read-only provider");
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.util.Base64;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A signed set of row changes moving the weathers table from one data version to the next.
+ * On the wire it is a JSON object holding the payload as a string, so the signature covers the
+ * exact bytes that were signed:
+ *
+ * <pre>
+ * {"payload": "{\"from\":1,\"to\":2,\"changes\":[{\"op\":\"update\",\"row\":[...]}]}",
+ *  "signature": "&lt;base64 SHA256withRSA signature of payload&gt;"}
+ * </pre>
+ *
+ * Rows list the columns in DatabaseContracts.PROJECTION order; deletes only need the AREAID.
+ */
+public class CityChangeset {
+
+    public static final int OP_INSERT = 0;
+    public static final int OP_UPDATE = 1;
+    public static final int OP_DELETE = 2;
+
+    public static class Change {
+        public final int op;
+        public final String areaId;
+        /** Null for deletes */
+        public final String[] row;
+
+        public Change(int op, String areaId, String[] row) {
+            this.op = op;
+            this.areaId = areaId;
+            this.row = row;
+        }
+    }
+
+    public final int fromVersion;
+    public final int toVersion;
+    public final List<Change> changes;
+
+    private CityChangeset(int fromVersion, int toVersion, List<Change> changes) {
+        this.fromVersion = fromVersion;
+        this.toVersion = toVersion;
+        this.changes = Collections.unmodifiableList(changes);
+    }
+
+    /**
+     * Verifies and parses a changeset. Throws if the signature doesn't match key.
+     */
+    public static CityChangeset parse(String text, PublicKey key)
+            throws JSONException, GeneralSecurityException {
+        JSONObject envelope = new JSONObject(text);
+        String payload = envelope.getString("payload");
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initVerify(key);
+        signature.update(payload.getBytes(StandardCharsets.UTF_8));
+        if (!signature.verify(Base64.decode(envelope.getString("signature"), Base64.DEFAULT))) {
+            throw new GeneralSecurityException("Bad changeset signature");
+        }
+
+        JSONObject json = new JSONObject(payload);
+        JSONArray jsonChanges = json.getJSONArray("changes");
+        List<Change> changes = new ArrayList<>(jsonChanges.length());
+        for (int i = 0; i < jsonChanges.length(); i++) {
+            JSONObject jsonChange = jsonChanges.getJSONObject(i);
+            String op = jsonChange.getString("op");
+            if ("delete".equals(op)) {
+                changes.add(new Change(OP_DELETE, jsonChange.getString("areaid"), null));
+                continue;
+            }
+            JSONArray jsonRow = jsonChange.getJSONArray("row");
+            if (jsonRow.length() != DatabaseContracts.PROJECTION.length) {
+                throw new JSONException("Bad row in change " + i);
+            }
+            String[] row = new String[jsonRow.length()];
+            for (int c = 0; c < row.length; c++) {
+                row[c] = jsonRow.getString(c);
+            }
+            if ("insert".equals(op)) {
+                changes.add(new Change(OP_INSERT, row[DatabaseContracts.AREAID_INDEX], row));
+            } else if ("update".equals(op)) {
+                changes.add(new Change(OP_UPDATE, row[DatabaseContracts.AREAID_INDEX], row));
+            } else {
+                throw new JSONException("Unknown op " + op);
+            }
+        }
+        int from = json.getInt("from");
+        int to = json.getInt("to");
+        if (to <= from) {
+            throw new JSONException("Changeset doesn't move forward");
+        }
+        return new CityChangeset(from, to, changes);
+    }
+}
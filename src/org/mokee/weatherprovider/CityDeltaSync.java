@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+import android.util.Log;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * Brings the local copy of the weathers table up to date by applying signed changesets one
+ * version at a time. Each changeset is applied in a single transaction; the city index picks
+ * up the same changes as an in-memory overlay instead of being rebuilt.
+ */
+public class CityDeltaSync {
+
+    private static final String TAG = CityDeltaSync.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final String PREFS_NAME = "city_sync";
+    private static final String PREF_VERSION = "version";
+    // Version of the table shipped in assets/location.db
+    private static final int BUNDLED_VERSION = 1;
+    // X.509 encoded RSA key changesets are signed with, base64 in assets
+    private static final String KEY_ASSET_NAME = "citysync.pub";
+
+    /**
+     * Where changesets come from.
+     */
+    public interface ChangesetSource {
+        /**
+         * Returns the changeset starting at fromVersion, or null if there is none yet.
+         */
+        String fetch(int fromVersion) throws IOException;
+    }
+
+    /**
+     * Reads changesets from &lt;directory&gt;/&lt;from version&gt;.json.
+     */
+    public static class FileChangesetSource implements ChangesetSource {
+        private final File mDirectory;
+
+        public FileChangesetSource(File directory) {
+            mDirectory = directory;
+        }
+
+        @Override
+        public String fetch(int fromVersion) throws IOException {
+            File file = new File(mDirectory, fromVersion + ".json");
+            if (!file.exists()) return null;
+            try (InputStream in = new FileInputStream(file)) {
+                return readFully(in);
+            }
+        }
+    }
+
+    private final Context mContext;
+    private final ChangesetSource mSource;
+    private final SharedPreferences mPrefs;
+    private final PublicKey mKey;
+
+    public CityDeltaSync(Context context, ChangesetSource source) {
+        this(context, source, null);
+    }
+
+    /**
+     * @param key what changesets must be signed with, null for the one in assets
+     */
+    CityDeltaSync(Context context, ChangesetSource source, PublicKey key) {
+        mContext = context;
+        mSource = source;
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mKey = key;
+    }
+
+    public int getVersion() {
+        return mPrefs.getInt(PREF_VERSION, BUNDLED_VERSION);
+    }
+
+    /**
+     * Applies every available changeset. Returns the number applied.
+     */
+    public synchronized int sync() {
+        PublicKey key = mKey != null ? mKey : loadKey();
+        if (key == null) {
+            if (DEBUG) Log.d(TAG, "No changeset key provisioned, skipping sync");
+            return 0;
+        }
+        int applied = 0;
+        try {
+            String text;
+            while ((text = mSource.fetch(getVersion())) != null) {
+                CityChangeset changeset = CityChangeset.parse(text, key);
+                if (changeset.fromVersion != getVersion()) {
+                    Log.w(TAG, "Changeset starts at " + changeset.fromVersion
+                            + ", expected " + getVersion());
+                    break;
+                }
+                apply(changeset);
+                applied++;
+            }
+        } catch (IOException | JSONException | GeneralSecurityException e) {
+            Log.w(TAG, "Rejected city changeset at version " + getVersion(), e);
+            ProviderMetrics.increment("city_sync_rejected");
+        }
+        if (applied > 0) {
+            ProviderMetrics.add("city_sync_applied", applied);
+            ProviderMetrics.event("City data now at version " + getVersion());
+        }
+        return applied;
+    }
+
+    private void apply(CityChangeset changeset) throws IOException {
+        DatabaseHelper databaseHelper = new DatabaseHelper(mContext);
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        try {
+            db.beginTransaction();
+            try {
+                for (CityChangeset.Change change : changeset.changes) {
+                    String[] whereArgs = new String[] { change.areaId };
+                    switch (change.op) {
+                        case CityChangeset.OP_DELETE:
+                            db.delete("weathers", DatabaseContracts.AREAID + " = ?", whereArgs);
+                            break;
+                        case CityChangeset.OP_UPDATE:
+                            if (db.update("weathers", toValues(change.row),
+                                    DatabaseContracts.AREAID + " = ?", whereArgs) > 0) {
+                                break;
+                            }
+                            // Updating a row we never had, insert it instead
+                        case CityChangeset.OP_INSERT:
+                            db.insertWithOnConflict("weathers", null, toValues(change.row),
+                                    SQLiteDatabase.CONFLICT_REPLACE);
+                            break;
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            db.close();
+        }
+
+        CityIndex cityIndex = CityIndex.get(mContext);
+        if (cityIndex != null) {
+            cityIndex.applyChanges(mContext, changeset.changes);
+        }
+        // Recorded only once the database and the index overlay both have the changes. They
+        // are idempotent, so dying before this just replays them
+        mPrefs.edit().putInt(PREF_VERSION, changeset.toVersion).commit();
+        if (DEBUG) Log.d(TAG, "Applied " + changeset.changes.size() + " changes, now at "
+                + changeset.toVersion);
+    }
+
+    private static ContentValues toValues(String[] row) {
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < DatabaseContracts.PROJECTION.length; i++) {
+            values.put(DatabaseContracts.PROJECTION[i], row[i]);
+        }
+        return values;
+    }
+
+    private PublicKey loadKey() {
+        try (InputStream in = mContext.getAssets().open(KEY_ASSET_NAME)) {
+            byte[] encoded = Base64.decode(readFully(in), Base64.DEFAULT);
+            return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+        } catch (IOException | GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
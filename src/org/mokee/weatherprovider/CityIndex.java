@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only view of the weathers table backed by the memory mapped city index CityIndexWriter
+ * builds from the database after each install. Rows are ordered by AREAID and columns are
+ * addressed with the DatabaseContracts *_INDEX constants. Lookups binary search the sorted
+ * sections directly in the mapping, so the table itself never lives on the heap.
+ */
+public class CityIndex {
+
+    private static final String TAG = CityIndex.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final String FILE_NAME = "cityindex.dat";
+    private static final String OVERLAY_FILE_NAME = "cityindex_overlay.json";
+
+    private static final int COLUMNS = CityIndexWriter.COLUMNS;
+    private static final int[] SORTED_COLUMNS = CityIndexWriter.SORTED_COLUMNS;
+
+    private static final Object sBuildLock = new Object();
+    private static CityIndex sInstance;
+    private static boolean sUnavailable;
+    // The file was found out of date, no use checking again until build has had its go
+    private static boolean sStale;
+
+    private final MappedByteBuffer mBuffer;
+    private final int mRowCount;
+    private final int mSortedOffset;
+    private final int mStringTableOffset;
+
+    /**
+     * Rows changed by delta sync since the index was built. Rows are only ever appended, so
+     * the virtual row numbers handed out for them (mRowCount + position) stay valid.
+     */
+    private static class Overlay {
+        static final Overlay EMPTY = new Overlay(new String[0][], new HashMap<String, Integer>());
+
+        // A null row marks a deleted AREAID
+        final String[][] rows;
+        // Latest position in rows for each changed AREAID
+        final Map<String, Integer> latest;
+
+        Overlay(String[][] rows, Map<String, Integer> latest) {
+            this.rows = rows;
+            this.latest = latest;
+        }
+
+        long estimateBytes() {
+            long bytes = 16 + rows.length * 4L + latest.size() * 48L;
+            for (String[] row : rows) {
+                if (row == null) continue;
+                for (String value : row) {
+                    bytes += MemoryTrimmer.sizeOf(value);
+                }
+            }
+            return bytes;
+        }
+    }
+
+    private volatile Overlay mOverlay = Overlay.EMPTY;
+
+    private CityIndex(MappedByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.getInt(0) != CityIndexWriter.MAGIC
+                || buffer.getInt(4) != CityIndexWriter.VERSION) {
+            throw new IOException("Unsupported city index");
+        }
+        mRowCount = buffer.getInt(8);
+        mSortedOffset = buffer.getInt(12);
+        mStringTableOffset = buffer.getInt(16);
+    }
+
+    /**
+     * Returns the city index, or null until build has written it for this install, in which
+     * case callers fall back to querying the database.
+     */
+    public static synchronized CityIndex get(Context context) {
+        if (sInstance != null || sUnavailable || sStale) return sInstance;
+        File file = new File(context.getNoBackupFilesDir(), FILE_NAME);
+        if (!isCurrent(context, file)) {
+            sStale = true;
+            return null;
+        }
+        try {
+            sInstance = map(file);
+            sInstance.loadOverlay(context);
+            if (DEBUG) Log.d(TAG, "Mapped " + sInstance.mRowCount + " cities");
+        } catch (IOException e) {
+            Log.w(TAG, "City index unavailable, using database", e);
+            sUnavailable = true;
+        }
+        return sInstance;
+    }
+
+    static CityIndex map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            return new CityIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Builds the index from the database unless this install already did. Takes a while on
+     * first start, lookups meanwhile keep going to the database.
+     */
+    public static void build(Context context) {
+        synchronized (sBuildLock) {
+            try {
+                File file = new File(context.getNoBackupFilesDir(), FILE_NAME);
+                if (isCurrent(context, file)) return;
+                long start = System.currentTimeMillis();
+                try {
+                    int cities = CityIndexWriter.write(context, file);
+                    ProviderMetrics.event("Built city index of " + cities + " cities in "
+                            + (System.currentTimeMillis() - start) + "ms");
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to build city index, using database", e);
+                    return;
+                }
+                // The database the index was built from already has every applied changeset
+                new File(context.getNoBackupFilesDir(), OVERLAY_FILE_NAME).delete();
+                synchronized (CityIndex.class) {
+                    sInstance = null;
+                    sUnavailable = false;
+                }
+            } finally {
+                // Whatever the outcome, the next get looks at the file once more
+                synchronized (CityIndex.class) {
+                    sStale = false;
+                }
+            }
+        }
+    }
+
+    // Built since the current version of the package, and with it the database, was installed
+    private static boolean isCurrent(Context context, File file) {
+        if (!file.exists()) return false;
+        try {
+            return file.lastModified() >= context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Drops the index to free memory, returns about how many heap bytes its overlay holds.
+     * The mapping isn't counted: its pages are backed by the file, the kernel reclaims them
+     * without the index being released. Both go once instances handed out before are no
+     * longer used; the next get maps the index again, retrying one that failed to map.
+     */
+    public static synchronized long release() {
+        sUnavailable = false;
+        if (sInstance == null) return 0;
+        long bytes = sInstance.mOverlay.estimateBytes();
+        sInstance = null;
+        return bytes;
+    }
+
+    public int getRowCount() {
+        return mRowCount;
+    }
+
+    public String getString(int row, int column) {
+        if (row >= mRowCount) {
+            return mOverlay.rows[row - mRowCount][column];
+        }
+        int offset = mStringTableOffset + mBuffer.getInt(rowOffset(row, column));
+        int length = mBuffer.getShort(offset) & 0xffff;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = mBuffer.get(offset + 2 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the rows whose column equals value, in AREAID order.
+     */
+    public int[] findEquals(int column, String value) {
+        int section = sortedSection(column);
+        byte[] key = value.getBytes(StandardCharsets.UTF_8);
+        int first = lowerBound(section, column, key);
+        int last = first;
+        while (last < mRowCount && compare(sortedRow(section, last), column, key) == 0) {
+            last++;
+        }
+        Overlay overlay = mOverlay;
+        int[] rows = new int[last - first + overlay.latest.size()];
+        int count = 0;
+        for (int i = first; i < last; i++) {
+            int row = sortedRow(section, i);
+            // Rows touched by delta sync are answered from the overlay
+            if (overlay.latest.isEmpty() || !overlay.latest.containsKey(
+                    getString(row, DatabaseContracts.AREAID_INDEX))) {
+                rows[count++] = row;
+            }
+        }
+        for (int position : overlay.latest.values()) {
+            String[] changed = overlay.rows[position];
+            if (changed != null && changed[column].equals(value)) {
+                rows[count++] = mRowCount + position;
+            }
+        }
+        rows = Arrays.copyOf(rows, count);
+        Arrays.sort(rows);
+        return rows;
+    }
+
+    /**
+     * Applies rows changed by delta sync on top of the mapped index and persists them, so
+     * the index never needs to be rebuilt for them. Throws if they couldn't be persisted.
+     */
+    public synchronized void applyChanges(Context context, List<CityChangeset.Change> changes)
+            throws IOException {
+        Overlay overlay = mOverlay;
+        String[][] rows = Arrays.copyOf(overlay.rows, overlay.rows.length + changes.size());
+        Map<String, Integer> latest = new HashMap<>(overlay.latest);
+        int position = overlay.rows.length;
+        for (CityChangeset.Change change : changes) {
+            rows[position] = change.row;
+            latest.put(change.areaId, position);
+            position++;
+        }
+        mOverlay = new Overlay(rows, latest);
+        saveOverlay(context);
+    }
+
+    private void loadOverlay(Context context) {
+        File file = new File(context.getNoBackupFilesDir(), OVERLAY_FILE_NAME);
+        if (!file.exists()) return;
+        try (InputStream in = new FileInputStream(file)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, count);
+            }
+            JSONArray json = new JSONArray(new String(bytes.toByteArray(),
+                    StandardCharsets.UTF_8));
+            String[][] rows = new String[json.length()][];
+            Map<String, Integer> latest = new HashMap<>();
+            for (int i = 0; i < json.length(); i++) {
+                JSONObject entry = json.getJSONObject(i);
+                JSONArray row = entry.optJSONArray("row");
+                if (row != null) {
+                    rows[i] = new String[COLUMNS];
+                    for (int c = 0; c < COLUMNS; c++) {
+                        rows[i][c] = row.getString(c);
+                    }
+                }
+                latest.put(entry.getString("areaid"), i);
+            }
+            mOverlay = new Overlay(rows, latest);
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Discarding unreadable city index overlay", e);
+            file.delete();
+        }
+    }
+
+    private void saveOverlay(Context context) throws IOException {
+        Overlay overlay = mOverlay;
+        JSONArray json = new JSONArray();
+        try {
+            for (Map.Entry<String, Integer> entry : overlay.latest.entrySet()) {
+                JSONObject jsonEntry = new JSONObject();
+                jsonEntry.put("areaid", entry.getKey());
+                String[] row = overlay.rows[entry.getValue()];
+                if (row != null) {
+                    jsonEntry.put("row", new JSONArray(Arrays.asList(row)));
+                }
+                json.put(jsonEntry);
+            }
+        } catch (JSONException e) {
+            throw new IOException("Unable to encode city index overlay", e);
+        }
+        File file = new File(context.getNoBackupFilesDir(), OVERLAY_FILE_NAME);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Unable to save city index overlay");
+        }
+    }
+
+    /**
+     * Returns the rows whose column is a substring of text, in AREAID order. Equivalent to
+     * scanning the table for text.contains(column), but costs one binary search per substring.
+     */
+    public int[] findContainedIn(int column, String text) {
+        int[] rows = findEquals(column, "");
+        int count = rows.length;
+        int length = text.length();
+        for (int start = 0; start < length; start++) {
+            for (int end = start + 1; end <= length; end++) {
+                int[] found = findEquals(column, text.substring(start, end));
+                if (found.length == 0) continue;
+                if (count + found.length > rows.length) {
+                    rows = Arrays.copyOf(rows, Math.max(rows.length * 2, count + found.length));
+                }
+                System.arraycopy(found, 0, rows, count, found.length);
+                count += found.length;
+            }
+        }
+        return distinct(rows, count);
+    }
+
+    public static int[] union(int[]... sets) {
+        int count = 0;
+        for (int[] set : sets) count += set.length;
+        int[] rows = new int[count];
+        count = 0;
+        for (int[] set : sets) {
+            System.arraycopy(set, 0, rows, count, set.length);
+            count += set.length;
+        }
+        return distinct(rows, count);
+    }
+
+    private static int[] distinct(int[] rows, int count) {
+        Arrays.sort(rows, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || rows[unique - 1] != rows[i]) {
+                rows[unique++] = rows[i];
+            }
+        }
+        return Arrays.copyOf(rows, unique);
+    }
+
+    private int lowerBound(int section, int column, byte[] key) {
+        int low = 0;
+        int high = mRowCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(sortedRow(section, mid), column, key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Compares the stored UTF-8 bytes against key without decoding them
+    private int compare(int row, int column, byte[] key) {
+        int offset = mStringTableOffset + mBuffer.getInt(rowOffset(row, column));
+        int length = mBuffer.getShort(offset) & 0xffff;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int diff = (mBuffer.get(offset + 2 + i) & 0xff) - (key[i] & 0xff);
+            if (diff != 0) return diff;
+        }
+        return length - key.length;
+    }
+
+    private int rowOffset(int row, int column) {
+        return 32 + (row * COLUMNS + column) * 4;
+    }
+
+    private int sortedRow(int section, int position) {
+        return mBuffer.getInt(mSortedOffset + (section * mRowCount + position) * 4);
+    }
+
+    private static int sortedSection(int column) {
+        for (int i = 0; i < SORTED_COLUMNS.length; i++) {
+            if (SORTED_COLUMNS[i] == column) return i;
+        }
+        throw new IllegalArgumentException("Column " + column + " is not indexed");
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.content.Context;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the weathers table of the database into the file CityIndex maps. The database is
+ * encrypted with a password only the device knows, so the index is built there, once per
+ * install, rather than shipped.
+ *
+ * Layout, all integers big endian: a 32 byte header (magic, version, row count, offset of the
+ * sorted sections, offset and size of the string table), then for every row in AREAID order
+ * the string table offsets of its columns, then for every sorted column the row numbers in
+ * that column's order, then the deduplicated, length prefixed UTF-8 strings.
+ */
+public class CityIndexWriter {
+
+    static final int MAGIC = 0x4d4b4349; // "MKCI"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int COLUMNS = DatabaseContracts.PROJECTION.length;
+    static final int[] SORTED_COLUMNS = new int[] {
+            DatabaseContracts.NAMEEN_INDEX,
+            DatabaseContracts.NAMECN_INDEX,
+            DatabaseContracts.DISTRICTEN_INDEX,
+            DatabaseContracts.DISTRICTCN_INDEX
+    };
+
+    /**
+     * Writes the index of the database to target, replacing it only once complete. Returns
+     * the number of cities written.
+     */
+    public static int write(Context context, File target) throws IOException {
+        List<byte[][]> rows = readRows(context);
+        File tmp = new File(target.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            write(rows, data);
+            data.flush();
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IOException("Unable to install city index");
+        }
+        return rows.size();
+    }
+
+    private static List<byte[][]> readRows(Context context) {
+        List<byte[][]> rows = new ArrayList<>();
+        DatabaseHelper databaseHelper = new DatabaseHelper(context);
+        SQLiteDatabase db = databaseHelper.getReadableDatabase();
+        Cursor cursor = db.query("weathers", DatabaseContracts.PROJECTION, null, null, null,
+                null, null);
+        try {
+            while (cursor.moveToNext()) {
+                byte[][] row = new byte[COLUMNS][];
+                for (int i = 0; i < COLUMNS; i++) {
+                    String value = cursor.getString(i);
+                    row[i] = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+                }
+                rows.add(row);
+            }
+        } finally {
+            cursor.close();
+            db.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Writes the index of rows, which are sorted by AREAID on the way.
+     */
+    static void write(final List<byte[][]> rows, DataOutputStream out) throws IOException {
+        rows.sort(new ColumnComparator(DatabaseContracts.AREAID_INDEX));
+        int rowCount = rows.size();
+
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        DataOutputStream stringsOut = new DataOutputStream(strings);
+        Map<String, Integer> offsets = new HashMap<>();
+        int[][] rowOffsets = new int[rowCount][COLUMNS];
+        for (int r = 0; r < rowCount; r++) {
+            for (int c = 0; c < COLUMNS; c++) {
+                byte[] value = rows.get(r)[c];
+                String key = new String(value, StandardCharsets.UTF_8);
+                Integer offset = offsets.get(key);
+                if (offset == null) {
+                    if (value.length > 0xffff) {
+                        throw new IOException("Value too long in row " + r);
+                    }
+                    offset = stringsOut.size();
+                    stringsOut.writeShort(value.length);
+                    stringsOut.write(value);
+                    offsets.put(key, offset);
+                }
+                rowOffsets[r][c] = offset;
+            }
+        }
+        stringsOut.flush();
+
+        int sortedOffset = HEADER_SIZE + rowCount * COLUMNS * 4;
+        int stringTableOffset = sortedOffset + SORTED_COLUMNS.length * rowCount * 4;
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(rowCount);
+        out.writeInt(sortedOffset);
+        out.writeInt(stringTableOffset);
+        out.writeInt(strings.size());
+        out.write(new byte[HEADER_SIZE - 24]);
+
+        for (int r = 0; r < rowCount; r++) {
+            for (int c = 0; c < COLUMNS; c++) {
+                out.writeInt(rowOffsets[r][c]);
+            }
+        }
+
+        for (int column : SORTED_COLUMNS) {
+            Integer[] order = new Integer[rowCount];
+            for (int r = 0; r < rowCount; r++) {
+                order[r] = r;
+            }
+            final ColumnComparator comparator = new ColumnComparator(column);
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int result = comparator.compare(rows.get(a), rows.get(b));
+                    return result != 0 ? result : Integer.compare(a, b);
+                }
+            });
+            for (Integer r : order) {
+                out.writeInt(r);
+            }
+        }
+
+        strings.writeTo(out);
+    }
+
+    // Unsigned byte order of UTF-8 matches code point order, which is what CityIndex searches by
+    private static class ColumnComparator implements Comparator<byte[][]> {
+        private final int mColumn;
+
+        ColumnComparator(int column) {
+            mColumn = column;
+        }
+
+        @Override
+        public int compare(byte[][] a, byte[][] b) {
+            byte[] left = a[mColumn];
+            byte[] right = b[mColumn];
+            int length = Math.min(left.length, right.length);
+            for (int i = 0; i < length; i++) {
+                int diff = (left[i] & 0xff) - (right[i] & 0xff);
+                if (diff != 0) return diff;
+            }
+            return left.length - right.length;
+        }
+    }
+}
@@ -25,6 +25,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     public DatabaseHelper(Context context) {
         super(context, DatabaseContracts.DB_NAME, null, DatabaseContracts.SCHEMA);
+        MoKeeWeatherApplication.ensureDatabase(context);
         SQLiteDatabase.loadLibs(context);
     }
 
@@ -32,6 +33,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         return(super.getReadableDatabase(MoKeeWeatherApplication.DB_PASSWORD));
     }
 
+    protected SQLiteDatabase getWritableDatabase() {
+        return(super.getWritableDatabase(MoKeeWeatherApplication.DB_PASSWORD));
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
     }
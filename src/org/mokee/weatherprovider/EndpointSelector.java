@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Mirrors of each upstream and which one requests go to. Mirrors are base URLs set in the
+ * settings screen, a comma separated list per upstream, tried alongside the default host.
+ * Requests to the default host are rewritten to the chosen mirror.
+ *
+ * Every request updates the moving averages of its endpoint's round trip time and success
+ * rate. Traffic goes to the fastest endpoint whose success rate is above MIN_SUCCESS_RATE,
+ * and every endpoint is tried again once its numbers are REMEASURE_INTERVAL old, so the
+ * choice follows changes and returns to an endpoint that recovered. Those tries are real
+ * requests, so one that fails is retried on the fastest healthy endpoint, see chooseFallback.
+ */
+public class EndpointSelector {
+
+    private static final String TAG = EndpointSelector.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final String PREF_MIRRORS_PREFIX = "mirrors_";
+
+    public static final String URL_MOKEE = "http://cloud.mokeedev.com";
+    public static final String URL_OWM = "http://api.openweathermap.org";
+    public static final String URL_OWM_UV = "http://api.owm.io";
+
+    private static final double RTT_WEIGHT = 0.3d;
+    private static final double SUCCESS_WEIGHT = 0.2d;
+    private static final double MIN_SUCCESS_RATE = 0.5d;
+    private static final long REMEASURE_INTERVAL = 1000L * 60L * 5L;
+
+    public static class Endpoint {
+        public final String baseUrl;
+        private double mRttMillis;
+        private double mSuccessRate = 1d;
+        private int mSamples;
+        private boolean mAttempted;
+        private long mLastAttempt;
+
+        Endpoint(String baseUrl) {
+            this.baseUrl = baseUrl;
+        }
+
+        public synchronized long getRttMillis() {
+            return Math.round(mRttMillis);
+        }
+
+        public synchronized int getSuccessPercent() {
+            return (int) Math.round(mSuccessRate * 100d);
+        }
+
+        public synchronized boolean isMeasured() {
+            return mSamples > 0;
+        }
+    }
+
+    /**
+     * An upstream API, known by the scheme and host its URL constants start with.
+     */
+    public static class Upstream {
+        public final String name;
+        public final String defaultUrl;
+        private final List<Endpoint> mEndpoints = new ArrayList<>();
+        private Endpoint mSelected;
+
+        Upstream(String name, String defaultUrl) {
+            this.name = name;
+            this.defaultUrl = defaultUrl;
+        }
+    }
+
+    private static EndpointSelector sInstance;
+
+    private final SharedPreferences mPrefs;
+    private final Upstream[] mUpstreams = new Upstream[] {
+            new Upstream("mokee", URL_MOKEE),
+            new Upstream("owm", URL_OWM),
+            new Upstream("owm_uv", URL_OWM_UV),
+    };
+
+    // Held here, SharedPreferences only keeps a weak reference
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPrefsListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+            if (key != null && key.startsWith(PREF_MIRRORS_PREFIX)) {
+                loadMirrors();
+            }
+        }
+    };
+
+    private EndpointSelector(Context context) {
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        mPrefs.registerOnSharedPreferenceChangeListener(mPrefsListener);
+        loadMirrors();
+    }
+
+    public static synchronized EndpointSelector get(Context context) {
+        if (sInstance == null) {
+            sInstance = new EndpointSelector(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the selector, or null if nothing has created it yet.
+     */
+    public static synchronized EndpointSelector get() {
+        return sInstance;
+    }
+
+    public Upstream[] getUpstreams() {
+        return mUpstreams;
+    }
+
+    // Keeps the numbers of endpoints that are still listed
+    private synchronized void loadMirrors() {
+        for (Upstream upstream : mUpstreams) {
+            List<Endpoint> endpoints = new ArrayList<>();
+            String mirrors = mPrefs.getString(PREF_MIRRORS_PREFIX + upstream.name, "");
+            for (String mirror : TextUtils.split(mirrors, ",")) {
+                String baseUrl = mirror.trim();
+                while (baseUrl.endsWith("/")) {
+                    baseUrl = baseUrl.substring(0, baseUrl.length() - 1);
+                }
+                if (!baseUrl.startsWith("http://") && !baseUrl.startsWith("https://")) {
+                    if (!baseUrl.isEmpty()) Log.w(TAG, "Ignoring mirror " + baseUrl);
+                    continue;
+                }
+                addEndpoint(upstream, endpoints, baseUrl);
+            }
+            addEndpoint(upstream, endpoints, upstream.defaultUrl);
+            upstream.mEndpoints.clear();
+            upstream.mEndpoints.addAll(endpoints);
+            if (!endpoints.contains(upstream.mSelected)) upstream.mSelected = null;
+        }
+    }
+
+    private static void addEndpoint(Upstream upstream, List<Endpoint> endpoints,
+            String baseUrl) {
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.baseUrl.equals(baseUrl)) return;
+        }
+        for (Endpoint endpoint : upstream.mEndpoints) {
+            if (endpoint.baseUrl.equals(baseUrl)) {
+                endpoints.add(endpoint);
+                return;
+            }
+        }
+        endpoints.add(new Endpoint(baseUrl));
+    }
+
+    /**
+     * Returns the endpoint a request for url should go to, or null if url isn't one of the
+     * upstreams. Pass it to rewrite and, once the request is over, to report.
+     */
+    public synchronized Endpoint choose(String url) {
+        Upstream upstream = findUpstream(url);
+        if (upstream == null) return null;
+        long now = SystemClock.elapsedRealtime();
+        Endpoint best = null;
+        Endpoint fallback = null;
+        for (Endpoint endpoint : upstream.mEndpoints) {
+            synchronized (endpoint) {
+                if (!endpoint.mAttempted || now - endpoint.mLastAttempt >= REMEASURE_INTERVAL) {
+                    // Unknown or outdated, this request measures it
+                    endpoint.mAttempted = true;
+                    endpoint.mLastAttempt = now;
+                    return endpoint;
+                }
+                if (endpoint.mSuccessRate >= MIN_SUCCESS_RATE) {
+                    if (best == null || endpoint.mRttMillis < best.mRttMillis) best = endpoint;
+                } else if (fallback == null || endpoint.mSuccessRate > fallback.mSuccessRate) {
+                    fallback = endpoint;
+                }
+            }
+        }
+        // With none healthy, the least broken one is still better than nothing
+        Endpoint chosen = best != null ? best : fallback;
+        synchronized (chosen) {
+            chosen.mLastAttempt = now;
+        }
+        if (chosen != upstream.mSelected) {
+            if (upstream.mSelected != null) {
+                ProviderMetrics.event("Switched " + upstream.name + " to " + chosen.baseUrl);
+            }
+            upstream.mSelected = chosen;
+        }
+        return chosen;
+    }
+
+    /**
+     * Returns the endpoint to retry a request for url on after it failed on failed: the
+     * fastest other one that is measured and healthy, or null if there is none.
+     */
+    public synchronized Endpoint chooseFallback(String url, Endpoint failed) {
+        Upstream upstream = findUpstream(url);
+        if (upstream == null) return null;
+        Endpoint best = null;
+        for (Endpoint endpoint : upstream.mEndpoints) {
+            if (endpoint == failed) continue;
+            synchronized (endpoint) {
+                if (endpoint.mSamples == 0 || endpoint.mSuccessRate < MIN_SUCCESS_RATE) continue;
+                if (best == null || endpoint.mRttMillis < best.mRttMillis) best = endpoint;
+            }
+        }
+        if (best == null) return null;
+        synchronized (best) {
+            best.mLastAttempt = SystemClock.elapsedRealtime();
+        }
+        ProviderMetrics.increment("endpoint_fallbacks");
+        return best;
+    }
+
+    /**
+     * Returns url pointed at endpoint instead of its default host.
+     */
+    public String rewrite(String url, Endpoint endpoint) {
+        for (Upstream upstream : mUpstreams) {
+            if (url.startsWith(upstream.defaultUrl)) {
+                return endpoint.baseUrl + url.substring(upstream.defaultUrl.length());
+            }
+        }
+        return url;
+    }
+
+    /**
+     * Records the outcome of a request to endpoint, how long it took and whether it succeeded.
+     */
+    public void report(Endpoint endpoint, long rttMillis, boolean success) {
+        synchronized (endpoint) {
+            if (success) {
+                endpoint.mRttMillis = endpoint.mSamples == 0 ? rttMillis
+                        : endpoint.mRttMillis + RTT_WEIGHT * (rttMillis - endpoint.mRttMillis);
+                // A recovered endpoint is taken back right away, not after several successes
+                endpoint.mSuccessRate = Math.max(MIN_SUCCESS_RATE, endpoint.mSuccessRate
+                        + SUCCESS_WEIGHT * (1d - endpoint.mSuccessRate));
+            } else {
+                endpoint.mSuccessRate -= SUCCESS_WEIGHT * endpoint.mSuccessRate;
+            }
+            endpoint.mSamples++;
+        }
+        ProviderMetrics.increment(success ? "endpoint_successes" : "endpoint_failures");
+        if (DEBUG) Log.d(TAG, endpoint.baseUrl + (success ? " ok in " + rttMillis + "ms"
+                : " failed"));
+    }
+
+    /**
+     * Returns the endpoint requests to upstream last went to, null if none went yet.
+     */
+    public synchronized Endpoint getSelected(Upstream upstream) {
+        return upstream.mSelected;
+    }
+
+    /**
+     * Returns the base URL of every endpoint, so their hosts can be resolved ahead of time.
+     */
+    public synchronized String[] getEndpointUrls() {
+        List<String> urls = new ArrayList<>();
+        for (Upstream upstream : mUpstreams) {
+            for (Endpoint endpoint : upstream.mEndpoints) {
+                urls.add(endpoint.baseUrl);
+            }
+        }
+        return urls.toArray(new String[urls.size()]);
+    }
+
+    private Upstream findUpstream(String url) {
+        for (Upstream upstream : mUpstreams) {
+            if (url.startsWith(upstream.defaultUrl)) return upstream;
+        }
+        return null;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Endpoints:");
+        for (Upstream upstream : mUpstreams) {
+            pw.println("  " + upstream.name + ":");
+            for (Endpoint endpoint : upstream.mEndpoints) {
+                pw.println(String.format(Locale.US, "    %s %s", endpoint.baseUrl,
+                        !endpoint.isMeasured() ? "not measured"
+                                : endpoint.getRttMillis() + "ms, "
+                                + endpoint.getSuccessPercent() + "% ok")
+                        + (endpoint == upstream.mSelected ? " (selected)" : ""));
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides whether a request may go upstream given the current connectivity. Offline requests
+ * are answered from the cache right away, refreshes on metered links are deferred as long as
+ * what is cached isn't older than MAX_DEFERRED_AGE, and all pending refreshes are released
+ * together once the link allows it. Pending refreshes for the
+ * same key are merged. Connectivity is read through ConnectivityState so the policy has no
+ * dependency on the Android framework.
+ *
+ * @param <T> what is needed to replay a deferred refresh
+ */
+public class FetchPolicy<T> {
+
+    /**
+     * The state of the default network.
+     */
+    public interface ConnectivityState {
+        boolean isConnected();
+        boolean isMetered();
+        /**
+         * True while the network is connected but reported to be behind a captive portal.
+         */
+        boolean isCaptivePortal();
+    }
+
+    public enum Decision {
+        /** Go upstream */
+        FETCH,
+        /** No usable network, answer from the cache and refresh once it is back */
+        SERVE_CACHE,
+        /** Metered network and recent data cached, answer from it and refresh once unmetered */
+        DEFER,
+        /** No usable network and nothing cached */
+        FAIL
+    }
+
+    /**
+     * Age past which cached data is fetched again even on a metered network. It matches the
+     * forecast TTL, an entry deferred longer would be out of date in every part.
+     */
+    public static final long MAX_DEFERRED_AGE = 3L * 60L * 60L * 1000L;
+
+    private static volatile FetchPolicy<?> sInstance;
+
+    private final ConnectivityState mState;
+    private final Map<String, T> mWaitingForNetwork = new LinkedHashMap<>();
+    private final Map<String, T> mWaitingForUnmetered = new LinkedHashMap<>();
+
+    public FetchPolicy(ConnectivityState state) {
+        mState = state;
+    }
+
+    public static void install(FetchPolicy<?> policy) {
+        sInstance = policy;
+    }
+
+    /**
+     * Returns the installed policy, or null before the service started.
+     */
+    public static FetchPolicy<?> get() {
+        return sInstance;
+    }
+
+    public boolean canReachNetwork() {
+        return mState.isConnected() && !mState.isCaptivePortal();
+    }
+
+    /**
+     * @param interactive whether someone is waiting for fresh data, as opposed to a periodic
+     *                    refresh of something already cached
+     * @param cached whether a cached result can be served instead
+     * @param cachedAge how old the cached result is, in milliseconds
+     */
+    public Decision decide(boolean interactive, boolean cached, long cachedAge) {
+        if (!canReachNetwork()) {
+            return cached ? Decision.SERVE_CACHE : Decision.FAIL;
+        }
+        if (mState.isMetered() && !interactive && cached && cachedAge <= MAX_DEFERRED_AGE) {
+            return Decision.DEFER;
+        }
+        return Decision.FETCH;
+    }
+
+    /**
+     * Remembers a refresh that decide() held back. A later refresh for the same key replaces
+     * the earlier one.
+     */
+    public synchronized void hold(Decision decision, String key, T refresh) {
+        if (decision == Decision.SERVE_CACHE) {
+            mWaitingForUnmetered.remove(key);
+            mWaitingForNetwork.put(key, refresh);
+        } else if (decision == Decision.DEFER) {
+            if (!mWaitingForNetwork.containsKey(key)) {
+                mWaitingForUnmetered.put(key, refresh);
+            }
+        }
+    }
+
+    /**
+     * Returns, and forgets, the held refreshes the current network allows to run.
+     */
+    public synchronized List<T> drainReady() {
+        List<T> ready = new ArrayList<>();
+        if (!canReachNetwork()) return ready;
+        ready.addAll(mWaitingForNetwork.values());
+        mWaitingForNetwork.clear();
+        if (!mState.isMetered()) {
+            ready.addAll(mWaitingForUnmetered.values());
+            mWaitingForUnmetered.clear();
+        }
+        return ready;
+    }
+
+    public synchronized int getPendingCount() {
+        return mWaitingForNetwork.size() + mWaitingForUnmetered.size();
+    }
+}
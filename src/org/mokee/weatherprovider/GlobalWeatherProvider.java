@@ -17,7 +17,9 @@
 package org.mokee.weatherprovider;
 
 import android.content.Context;
+import android.location.Location;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -35,7 +37,6 @@ import mokee.weather.RequestInfo;
 import mokee.weather.WeatherInfo;
 import mokee.weather.WeatherInfo.DayForecast;
 import mokee.weather.WeatherLocation;
-import mokee.weatherservice.ServiceRequest;
 
 public class GlobalWeatherProvider {
 
@@ -46,33 +47,86 @@ public class GlobalWeatherProvider {
 
     public static final int FORECAST_DAYS = 5;
 
-    private static final String URL_LOCATION =
-            "http://api.openweathermap.org/data/2.5/find?q=%s&mode=json&lang=%s&appid=%s";
-    private static final String URL_WEATHER =
-            "http://api.openweathermap.org/data/2.5/weather?%s&mode=json&units=%s&lang=%s&appid=%s";
+    // URLs are the concatenation of these pieces and the request's values in between, which
+    // is cheaper than String.format on every request
+    private static final String URL_LOCATION = "http://api.openweathermap.org/data/2.5/find?q=";
+    private static final String URL_LOCATION_LANG = "&mode=json&lang=";
+    private static final String URL_LOCATION_APPID = "&appid=";
+    // Weather is always fetched in metric units and without a language, the cache stores it
+    // in that canonical form and applies units and labels when serving
+    private static final String URL_WEATHER = "http://api.openweathermap.org/data/2.5/weather?";
+    private static final String URL_WEATHER_APPID = "&mode=json&units=metric&appid=";
     private static final String URL_FORECAST =
-            "http://api.openweathermap.org/data/2.5/forecast/daily?" +
-                    "%s&mode=json&units=%s&lang=%s&cnt=" + FORECAST_DAYS + "&appid=%s";
+            "http://api.openweathermap.org/data/2.5/forecast/daily?";
+    private static final String URL_FORECAST_APPID =
+            "&mode=json&units=metric&cnt=" + FORECAST_DAYS + "&appid=";
+
+    private static final String URL_UV_INDEX = "http://api.owm.io/air/1.0/uvi/current?lat=";
+    private static final String URL_UV_INDEX_LON = "&lon=";
+
+    // Free tier allows 60 calls per minute for each API key
+    private static final RequestRateLimiter.Bucket OWM_QUOTA =
+            new RequestRateLimiter.Bucket("owm", mAPIKey, 60, 60L * 1000L);
+
+    /**
+     * Returns the selection of a city by its OpenWeatherMap id.
+     */
+    public static String selectCity(String cityId) {
+        return "id=" + cityId;
+    }
+
+    /**
+     * Returns the selection of the coordinates, with six decimals.
+     */
+    public static String selectCoordinates(double latitude, double longitude) {
+        StringBuilder selection = new StringBuilder(32).append("lat=");
+        appendFixed(selection, latitude).append("&lon=");
+        return appendFixed(selection, longitude).toString();
+    }
 
-    private static final String URL_UV_INDEX = "http://api.owm.io/air/1.0/uvi/current?lat=%s&lon=%s&%s";
+    // Same digits as %f, without the cost of a Formatter
+    private static StringBuilder appendFixed(StringBuilder builder, double value) {
+        long micros = Math.round(value * 1000000d);
+        if (micros < 0) {
+            builder.append('-');
+            micros = -micros;
+        }
+        builder.append(micros / 1000000L).append('.');
+        long fraction = micros % 1000000L;
+        for (long digit = 100000L; digit > 1 && fraction < digit; digit /= 10) {
+            builder.append('0');
+        }
+        return builder.append(fraction);
+    }
 
-    public static WeatherInfo getWeatherInfo(Context context, ServiceRequest mRequest, String selection) {
-        String locale = getLanguageCode(context);
+    public static WeatherInfo getWeatherInfo(Context context, RequestInfo requestInfo, String selection,
+            CancellationSignal signal, RequestDeadline deadline) {
+        String key = LocationKeys.forRequest(requestInfo);
+        WeatherCache.Forecast forecast = WeatherCache.getInstance().getFreshForecast(key);
 
-        //TODO Read units from settings
-        String currentConditionURL = String.format(Locale.US, URL_WEATHER, selection, "metric",
-                locale, mAPIKey);
+        String currentConditionURL = new StringBuilder(128).append(URL_WEATHER)
+                .append(selection).append(URL_WEATHER_APPID).append(mAPIKey).toString();
         if (DEBUG) Log.d(TAG, "Current condition URL " + currentConditionURL);
-        String currentConditionResponse = HttpRetriever.retrieve(currentConditionURL);
+        if (!RequestRateLimiter.get(context).tryAcquire(OWM_QUOTA)) return null;
+        String currentConditionResponse = HttpRetriever.retrieve(currentConditionURL, signal,
+                deadline.getTimeoutMillis());
         if (currentConditionResponse == null) return null;
         if (DEBUG) Log.d(TAG, "Response " + currentConditionResponse);
 
-        String forecastUrl = String.format(Locale.US, URL_FORECAST, selection, "metric",
-                locale, mAPIKey);
-        if (DEBUG) Log.d(TAG, "Forecast URL " + forecastUrl);
-        String forecastResponse = HttpRetriever.retrieve(forecastUrl);
-        if (forecastUrl == null) return null;
-        if (DEBUG) Log.d(TAG, "Response " + forecastResponse);
+        // The daily forecast changes slowly, only download it once the cached one is stale
+        String forecastResponse = null;
+        if (forecast == null) {
+            String forecastUrl = new StringBuilder(128).append(URL_FORECAST)
+                    .append(selection).append(URL_FORECAST_APPID).append(mAPIKey).toString();
+            if (DEBUG) Log.d(TAG, "Forecast URL " + forecastUrl);
+            if (!RequestRateLimiter.get(context).tryAcquire(OWM_QUOTA)) return null;
+            forecastResponse = HttpRetriever.retrieve(forecastUrl, signal,
+                    deadline.getTimeoutMillis());
+            if (forecastResponse == null) return null;
+            if (DEBUG) Log.d(TAG, "Response " + forecastResponse);
+        } else {
+            ProviderMetrics.increment("forecast_cache_hits");
+        }
 
         try {
             JSONObject currentCondition = new JSONObject(currentConditionResponse);
@@ -86,55 +140,45 @@ public class GlobalWeatherProvider {
             JSONObject weather = currentCondition.getJSONArray("weather").getJSONObject(0);
             JSONObject main = currentCondition.getJSONObject("main");
             JSONObject wind = currentCondition.getJSONObject("wind");
-            ArrayList<DayForecast> forecasts =
-                    parseForecasts(new JSONObject(forecastResponse).getJSONArray("list"), true);
+            if (forecast == null) {
+                forecast = new WeatherCache.Forecast(parseForecasts(
+                        new JSONObject(forecastResponse).getJSONArray("list"), true, signal));
+            }
 
             String cityName = null;
-            if (mRequest.getRequestInfo().getRequestType()
+            if (requestInfo.getRequestType()
                     == RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ) {
-                cityName = mRequest.getRequestInfo().getWeatherLocation().getCity();
+                cityName = requestInfo.getWeatherLocation().getCity();
             }
             if (cityName == null || TextUtils.equals(cityName, "")) {
                 cityName = currentCondition.getString("name");
                 if (cityName == null) return null;
             }
 
-            WeatherInfo.Builder weatherInfo = new WeatherInfo.Builder(
-                    cityName, sanitizeTemperature(main.getDouble("temp"), true),
-                    WeatherContract.WeatherColumns.TempUnit.CELSIUS);
-            weatherInfo.setHumidity(main.getDouble("humidity"));
-            weatherInfo.setWind(wind.getDouble("speed"), wind.getDouble("deg"),
-                    WeatherContract.WeatherColumns.WindSpeedUnit.KPH);
-            weatherInfo.setTodaysLow(sanitizeTemperature(main.getDouble("temp_min"), true));
-            weatherInfo.setTodaysHigh(sanitizeTemperature(main.getDouble("temp_max"), true));
-            //NOTE: The timestamp provided by OpenWeatherMap corresponds to the time the data
-            //was last updated by the stations. Let's use System.currentTimeMillis instead
-            weatherInfo.setTimestamp(System.currentTimeMillis());
-            weatherInfo.setWeatherCondition(mapConditionIconToCode(weather.getInt("id")));
-            weatherInfo.setForecast(forecasts);
-
-            if (mRequest.getRequestInfo().getRequestType()
-                    == RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ) {
-                MoKeeWeatherProviderService.mLastWeatherLocation = mRequest.getRequestInfo().getWeatherLocation();
-                MoKeeWeatherProviderService.mLastLocation = null;
-            } else if (mRequest.getRequestInfo().getRequestType()
+            int uvLevel = WeatherLabels.UV_NOT_AVAILABLE;
+            if (requestInfo.getRequestType()
                     == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ) {
-                MoKeeWeatherProviderService.mLastLocation = mRequest.getRequestInfo().getLocation();
-                if (MoKeeWeatherProviderService.mLastLocation != null) {
-                    String uvIndexURL = String.format(Locale.US, URL_UV_INDEX, MoKeeWeatherProviderService.mLastLocation.getLatitude(),
-                            MoKeeWeatherProviderService.mLastLocation.getLongitude(), mAPIKey);
-                    String currentUVResponse = HttpRetriever.retrieve(uvIndexURL);
-                    if (!TextUtils.isEmpty(currentUVResponse)) {
-                        JSONObject uvIndex = new JSONObject(currentUVResponse);
-                        if (uvIndex.has("value")) {
-                            weatherInfo.setUv(getUVLevelName(context, uvIndex.getDouble("value")));
-                        }
+                Location location = requestInfo.getLocation();
+                if (location != null) {
+                    double uvIndex = getUVIndex(context, location, signal, deadline);
+                    if (!Double.isNaN(uvIndex)) {
+                        uvLevel = WeatherLabels.getUVLevel(uvIndex);
                     }
                 }
-                MoKeeWeatherProviderService.mLastWeatherLocation = null;
             }
 
-            return weatherInfo.build();
+            //NOTE: The timestamp provided by OpenWeatherMap corresponds to the time the data
+            //was last updated by the stations. The cache stamps it with the time of the fetch
+            WeatherCache.Conditions conditions = new WeatherCache.Conditions(cityName, null,
+                    sanitizeTemperature(main.getDouble("temp"), true),
+                    main.getDouble("humidity"), wind.getDouble("speed"), wind.getDouble("deg"),
+                    sanitizeTemperature(main.getDouble("temp_min"), true),
+                    sanitizeTemperature(main.getDouble("temp_max"), true),
+                    mapConditionIconToCode(weather.getInt("id")), WeatherLabels.AQI_NOT_AVAILABLE,
+                    uvLevel);
+            WeatherCache.getInstance().put(key, conditions, forecast);
+            return WeatherCache.buildWeatherInfo(context, conditions, forecast,
+                    requestInfo.getTemperatureUnit());
         } catch (JSONException e) {
             //Received malformed or missing data
             if (DEBUG) Log.w(TAG, "JSONException while processing weather update", e);
@@ -142,8 +186,36 @@ public class GlobalWeatherProvider {
         return null;
     }
 
-    private static ArrayList<DayForecast> parseForecasts(JSONArray forecasts, boolean metric)
-            throws JSONException {
+    // Nearby requests share the UV index of their grid cell, only a miss goes upstream, and
+    // only while the request still has time for it
+    private static double getUVIndex(Context context, Location location,
+            CancellationSignal signal, RequestDeadline deadline) throws JSONException {
+        UvIndexCache uvIndexCache = UvIndexCache.get(context);
+        double cached = uvIndexCache.get(location.getLatitude(), location.getLongitude());
+        if (!Double.isNaN(cached)) return cached;
+        if (!deadline.allowOptional(RequestDeadline.FIELD_UV)) return Double.NaN;
+
+        String uvIndexURL = new StringBuilder(128).append(URL_UV_INDEX)
+                .append(location.getLatitude()).append(URL_UV_INDEX_LON)
+                .append(location.getLongitude()).append('&').append(mAPIKey).toString();
+        String currentUVResponse = RequestRateLimiter.get(context).tryAcquire(OWM_QUOTA)
+                ? HttpRetriever.retrieve(uvIndexURL, signal, deadline.getTimeoutMillis()) : null;
+        if (!TextUtils.isEmpty(currentUVResponse)) {
+            JSONObject uvIndex = new JSONObject(currentUVResponse);
+            if (uvIndex.has("value")) {
+                double value = uvIndex.getDouble("value");
+                uvIndexCache.put(location.getLatitude(), location.getLongitude(), value);
+                return value;
+            }
+        } else if (deadline.getRemainingMillis() == 0) {
+            // The call ran into the deadline rather than failing on its own
+            deadline.drop(RequestDeadline.FIELD_UV);
+        }
+        return Double.NaN;
+    }
+
+    private static ArrayList<DayForecast> parseForecasts(JSONArray forecasts, boolean metric,
+            CancellationSignal signal) throws JSONException {
         ArrayList<DayForecast> result = new ArrayList<>();
         int count = forecasts.length();
 
@@ -151,6 +223,7 @@ public class GlobalWeatherProvider {
             throw new JSONException("Empty forecasts array");
         }
         for (int i = 0; i < count; i++) {
+            signal.throwIfCanceled();
             JSONObject forecast = forecasts.getJSONObject(i);
             JSONObject temperature = forecast.getJSONObject("temp");
             JSONObject weather = forecast.getJSONArray("weather").getJSONObject(0);
@@ -332,9 +405,22 @@ public class GlobalWeatherProvider {
         return WeatherContract.WeatherColumns.WeatherCode.NOT_AVAILABLE;
     }
 
-    public static ArrayList<WeatherLocation> getLocations(Context context, String input) {
-        String url = String.format(URL_LOCATION, Uri.encode(input), getLanguageCode(context), mAPIKey);
-        String response = HttpRetriever.retrieve(url);
+    public static ArrayList<WeatherLocation> getLocations(Context context, String input,
+            CancellationSignal signal) {
+        // Sent as typed, only the cache key is case folded
+        String query = input.trim();
+        String languageCode = getLanguageCode(context);
+        String cacheKey = LocationSearchCache.keyOf(query, languageCode);
+        ArrayList<WeatherLocation> cached = LocationSearchCache.get(context).get(cacheKey);
+        if (cached != null) return cached;
+
+        String url = new StringBuilder(128).append(URL_LOCATION).append(Uri.encode(query))
+                .append(URL_LOCATION_LANG).append(languageCode)
+                .append(URL_LOCATION_APPID).append(mAPIKey).toString();
+        if (!RequestRateLimiter.get(context).tryAcquire(OWM_QUOTA)) {
+            return null;
+        }
+        String response = HttpRetriever.retrieve(url, signal);
         if (response == null) {
             return null;
         }
@@ -344,6 +430,7 @@ public class GlobalWeatherProvider {
             int count = jsonResults.length();
 
             for (int i = 0; i < count; i++) {
+                signal.throwIfCanceled();
                 JSONObject result = jsonResults.getJSONObject(i);
                 String cityId = result.getString("id");
                 String cityName = result.getString("name");
@@ -353,6 +440,7 @@ public class GlobalWeatherProvider {
                         .setCountry(country).build();
                 results.add(weatherLocation);
             }
+            LocationSearchCache.get(context).put(cacheKey, results);
             return results;
         } catch (JSONException e) {
             if (DEBUG) Log.w(TAG, "JSONException while processing location lookup", e);
@@ -407,21 +495,4 @@ public class GlobalWeatherProvider {
         return value;
     }
 
-    private static String getUVLevelName(Context context, double index) {
-        StringBuilder stringBuilder = new StringBuilder();
-        stringBuilder.append(context.getString(R.string.uv)).append(" ");
-        if (index < 3) {
-            stringBuilder.append(context.getString(R.string.uv_level_1));
-        } else if (index >= 3 && index < 6) {
-            stringBuilder.append(context.getString(R.string.uv_level_2));
-        } else if (index >= 6 && index < 8) {
-            stringBuilder.append(context.getString(R.string.uv_level_3));
-        } else if (index >= 8 && index < 11) {
-            stringBuilder.append(context.getString(R.string.uv_level_4));
-        } else {
-            stringBuilder.append(context.getString(R.string.uv_level_5));
-        }
-        return stringBuilder.toString();
-    }
-
 }
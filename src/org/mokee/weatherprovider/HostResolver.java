@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Orders the addresses of the upstream hosts for HttpRetriever. The hosts are resolved at
+ * warm-up so the system resolver has them cached ahead of the first request.
+ *
+ * InetAddress doesn't expose the TTL of its answers, so none are kept here: every request
+ * asks the system resolver, which honours the TTL of the records. Only the address that last
+ * accepted a connection is remembered, to be tried first while the resolver still returns it.
+ */
+public class HostResolver {
+
+    private static final String TAG = HostResolver.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final HostResolver sInstance = new HostResolver();
+
+    private final ConcurrentHashMap<String, InetAddress> mPreferred = new ConcurrentHashMap<>();
+
+    public static HostResolver getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns the addresses of host, the one that last accepted a connection first and the
+     * rest alternating between IPv6 and IPv4.
+     */
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        long now = SystemClock.elapsedRealtime();
+        InetAddress[] addresses;
+        try {
+            addresses = interleave(InetAddress.getAllByName(host));
+        } catch (UnknownHostException e) {
+            ProviderMetrics.increment("dns_failures");
+            throw e;
+        }
+        ProviderMetrics.increment("dns_lookups");
+        ProviderMetrics.add("dns_time_ms", SystemClock.elapsedRealtime() - now);
+        InetAddress preferred = mPreferred.get(host);
+        if (preferred == null) return addresses;
+        for (int i = 1; i < addresses.length; i++) {
+            if (addresses[i].equals(preferred)) {
+                System.arraycopy(addresses, 0, addresses, 1, i);
+                addresses[0] = preferred;
+                break;
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Remembers address as the one to try first for host, after it accepted a connection
+     * that others didn't.
+     */
+    public void prefer(String host, InetAddress address) {
+        mPreferred.put(host, address);
+    }
+
+    /**
+     * Resolves the hosts of urls ahead of their first request. Blocks, call off the main thread.
+     */
+    public void prefetch(String... urls) {
+        for (String url : urls) {
+            String host = url != null ? Uri.parse(url).getHost() : null;
+            if (host == null) continue;
+            try {
+                resolve(host);
+            } catch (UnknownHostException e) {
+                if (DEBUG) Log.d(TAG, "Unable to resolve " + host);
+            }
+        }
+    }
+
+    /**
+     * Forgets the preferred addresses, for when the network changed and they may no longer
+     * be the best.
+     */
+    public void clear() {
+        mPreferred.clear();
+    }
+
+    /**
+     * Forgets the preferred addresses to free memory, returns about how many bytes they held.
+     */
+    public long shed() {
+        long bytes = 0;
+        for (String host : mPreferred.keySet()) {
+            bytes += MemoryTrimmer.sizeOf(host) + 32 + 48;
+        }
+        mPreferred.clear();
+        return bytes;
+    }
+
+    // RFC 8305 ordering, a broken address family costs one attempt instead of all of them
+    private static InetAddress[] interleave(InetAddress[] addresses) {
+        List<InetAddress> v6 = new ArrayList<>();
+        List<InetAddress> v4 = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            (address instanceof Inet6Address ? v6 : v4).add(address);
+        }
+        InetAddress[] result = new InetAddress[addresses.length];
+        int i = 0;
+        for (int n = 0; n < Math.max(v6.size(), v4.size()); n++) {
+            if (n < v6.size()) result[i++] = v6.get(n);
+            if (n < v4.size()) result[i++] = v4.get(n);
+        }
+        return result;
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("Preferred addresses:");
+        for (Map.Entry<String, InetAddress> entry : new TreeMap<>(mPreferred).entrySet()) {
+            pw.println("  " + entry.getKey() + ": " + entry.getValue().getHostAddress());
+        }
+    }
+}
@@ -16,43 +16,110 @@
 
 package org.mokee.weatherprovider;
 
-import java.io.BufferedReader;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.HttpURLConnection;
+import java.net.Inet6Address;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 
 public class HttpRetriever {
 
-    public static String retrieve(String url, String params) {
-        URL targetURL;
-        try {
-            targetURL = new URL(url);
-        } catch (MalformedURLException e) {
-            return null;
+    // Time an address gets to accept a connection while others are left to try
+    private static final int FALLBACK_CONNECT_TIMEOUT = 500;
+
+    // Read buffers are reused across responses, as many as workers read at once
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_POOLED_BUFFERS = 4;
+    private static final ArrayDeque<char[]> sBufferPool = new ArrayDeque<>();
+
+    public static String retrieve(String url, String params, CancellationSignal signal) {
+        return retrieve(url, params, signal, 0);
+    }
+
+    /**
+     * POSTs params to url, giving up after timeoutMillis to connect or between reads. A timeout
+     * of 0 leaves the system defaults.
+     */
+    public static String retrieve(String url, String params, CancellationSignal signal,
+            int timeoutMillis) {
+        return request(url, "POST", params, signal, timeoutMillis);
+    }
+
+    public static String retrieve(String url, CancellationSignal signal) {
+        return retrieve(url, signal, 0);
+    }
+
+    public static String retrieve(String url, CancellationSignal signal, int timeoutMillis) {
+        return request(url, "GET", null, signal, timeoutMillis);
+    }
+
+    // Answers the request from the trace being replayed, or sends it through the bulkhead of
+    // its upstream
+    private static String request(final String url, final String method, final String params,
+            CancellationSignal signal, final int timeoutMillis) {
+        final TraceRecorder.Trace trace = TraceRecorder.current();
+        if (trace != null && trace.isReplay()) return trace.replay(url, signal);
+        if (!canReachNetwork()) return null;
+        Bulkhead bulkhead = Bulkhead.forUrl(url);
+        if (bulkhead == null) return exchange(url, method, params, signal, timeoutMillis, trace);
+        return bulkhead.call(new Bulkhead.Call<String>() {
+            @Override
+            public String run(CancellationSignal callSignal) {
+                return exchange(url, method, params, callSignal, timeoutMillis, trace);
+            }
+        }, signal, timeoutMillis);
+    }
+
+    // Sends the request to the endpoint EndpointSelector picks and tells it how that went. If
+    // it fails, it is sent once more to the fastest healthy other endpoint, so an endpoint
+    // being measured or going down doesn't fail the request. Traces record both as one
+    // exchange, which is what a replay answers the request with
+    private static String exchange(String url, String method, String params,
+            CancellationSignal signal, int timeoutMillis, TraceRecorder.Trace trace) {
+        EndpointSelector selector = EndpointSelector.get();
+        EndpointSelector.Endpoint endpoint = selector != null ? selector.choose(url) : null;
+        long start = SystemClock.elapsedRealtime();
+        String response = attempt(selector, endpoint, url, method, params, signal,
+                timeoutMillis);
+        if (response == null && endpoint != null
+                && (signal == null || !signal.isCanceled())) {
+            EndpointSelector.Endpoint fallback = selector.chooseFallback(url, endpoint);
+            if (fallback != null) {
+                response = attempt(selector, fallback, url, method, params, signal,
+                        timeoutMillis);
+            }
         }
-        HttpURLConnection urlConnection = null;
-        String response;
-        try {
-            urlConnection = (HttpURLConnection) targetURL.openConnection();
-            urlConnection.setRequestMethod("POST");
-            urlConnection.setDoInput(true);
-            urlConnection.setUseCaches(false);
-            urlConnection.setRequestProperty("Accept-Charset", "utf-8");
-            byte[] bytes = params.toString().getBytes();
-            urlConnection.getOutputStream().write(bytes);
-            response = readStream(urlConnection.getInputStream());
-        } catch (IOException e) {
-            return null;
-        } finally {
-            if (urlConnection != null) urlConnection.disconnect();
+        if (trace != null) {
+            trace.addExchange(url, start, SystemClock.elapsedRealtime() - start, response);
+        }
+        return response;
+    }
+
+    private static String attempt(EndpointSelector selector, EndpointSelector.Endpoint endpoint,
+            String url, String method, String params, CancellationSignal signal,
+            int timeoutMillis) {
+        if (endpoint != null) url = selector.rewrite(url, endpoint);
+        long start = SystemClock.elapsedRealtime();
+        String response = send(url, method, params, signal, timeoutMillis);
+        // A cancelled request says nothing about the endpoint
+        if (endpoint != null && (signal == null || !signal.isCanceled())) {
+            selector.report(endpoint, SystemClock.elapsedRealtime() - start, response != null);
         }
         return response;
     }
 
-    public static String retrieve(String url) {
+    private static String send(String url, String method, String params,
+            CancellationSignal signal, int timeoutMillis) {
         URL targetURL;
         try {
             targetURL = new URL(url);
@@ -62,32 +129,149 @@ public class HttpRetriever {
         HttpURLConnection urlConnection = null;
         String response;
         try {
-            urlConnection = (HttpURLConnection) targetURL.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.setDoInput(true);
-            urlConnection.connect();
+            urlConnection = connect(targetURL, method, timeoutMillis, signal);
+            if (params != null) {
+                urlConnection.getOutputStream().write(params.getBytes());
+            }
             response = readStream(urlConnection.getInputStream());
         } catch (IOException e) {
             return null;
         } finally {
+            if (signal != null) signal.setOnCancelListener(null);
             if (urlConnection != null) urlConnection.disconnect();
         }
         return response;
     }
 
-    private static String readStream(InputStream inputStream) {
-        BufferedReader br;
-        br = new BufferedReader(new InputStreamReader(inputStream));
-        StringBuilder builder = new StringBuilder();
-        String line;
+    /**
+     * Opens a connection to url, trying the resolved addresses of its host one after another.
+     * This is a serial fallback, not staggered parallel attempts: all but the last address get
+     * FALLBACK_CONNECT_TIMEOUT to connect, so one that doesn't answer delays the request by
+     * that much. HTTPS is left to the system resolver, the certificate needs the host name.
+     */
+    private static HttpURLConnection connect(URL url, String method, int timeoutMillis,
+            CancellationSignal signal) throws IOException {
+        InetAddress[] addresses = null;
+        if ("http".equals(url.getProtocol())) {
+            try {
+                addresses = HostResolver.getInstance().resolve(url.getHost());
+            } catch (UnknownHostException e) {
+                // Leave it to the system resolver to retry and report
+            }
+        }
+        if (addresses == null || addresses.length == 0) {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            prepare(connection, method, timeoutMillis, timeoutMillis, signal);
+            connection.connect();
+            return connection;
+        }
+        for (int i = 0; ; i++) {
+            boolean last = i == addresses.length - 1;
+            String literal = addresses[i] instanceof Inet6Address
+                    ? "[" + addresses[i].getHostAddress() + "]" : addresses[i].getHostAddress();
+            HttpURLConnection connection = (HttpURLConnection) new URL(url.getProtocol(),
+                    literal, url.getPort(), url.getFile()).openConnection();
+            connection.setRequestProperty("Host", url.getPort() < 0
+                    ? url.getHost() : url.getHost() + ":" + url.getPort());
+            prepare(connection, method, last ? timeoutMillis : timeoutMillis > 0
+                    ? Math.min(timeoutMillis, FALLBACK_CONNECT_TIMEOUT)
+                    : FALLBACK_CONNECT_TIMEOUT, timeoutMillis, signal);
+            try {
+                connection.connect();
+            } catch (IOException e) {
+                connection.disconnect();
+                if (last) throw e;
+                if (signal != null) signal.throwIfCanceled();
+                ProviderMetrics.increment("connect_fallbacks");
+                continue;
+            }
+            if (i > 0) HostResolver.getInstance().prefer(url.getHost(), addresses[i]);
+            return connection;
+        }
+    }
+
+    private static void prepare(HttpURLConnection connection, String method,
+            int connectTimeoutMillis, int readTimeoutMillis, CancellationSignal signal)
+            throws IOException {
+        abortOnCancel(connection, signal);
+        if (connectTimeoutMillis > 0) connection.setConnectTimeout(connectTimeoutMillis);
+        if (readTimeoutMillis > 0) connection.setReadTimeout(readTimeoutMillis);
+        connection.setRequestMethod(method);
+        connection.setDoInput(true);
+        if ("POST".equals(method)) {
+            connection.setDoOutput(true);
+            connection.setUseCaches(false);
+            connection.setRequestProperty("Accept-Charset", "utf-8");
+        }
+    }
+
+    // Fail right away instead of tying up a worker until the socket gives up
+    private static boolean canReachNetwork() {
+        FetchPolicy<?> policy = FetchPolicy.get();
+        if (policy == null || policy.canReachNetwork()) return true;
+        ProviderMetrics.increment("offline_fail_fast");
+        return false;
+    }
+
+    // Interrupting the worker doesn't unblock a socket read, closing the connection does
+    private static void abortOnCancel(final HttpURLConnection connection,
+            CancellationSignal signal) {
+        if (signal == null) return;
+        signal.throwIfCanceled();
+        signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+            @Override
+            public void onCancel() {
+                ProviderMetrics.increment("cancelled_connections");
+                connection.disconnect();
+            }
+        });
+    }
+
+    // Line breaks are dropped as they always were, none of the upstreams needs them
+    static String readStream(InputStream inputStream) {
+        Reader reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8);
+        char[] buffer = obtainBuffer();
+        StringBuilder builder = new StringBuilder(buffer.length);
+        int count;
         try {
-            while ((line = br.readLine()) != null) {
-                builder.append(line);
+            while ((count = reader.read(buffer)) > 0) {
+                for (int i = 0; i < count; i++) {
+                    char c = buffer[i];
+                    if (c != '\n' && c != '\r') builder.append(c);
+                }
             }
         } catch (IOException e) {
             //Unable to read from the stream
             return null;
+        } finally {
+            recycleBuffer(buffer);
         }
         return builder.toString();
     }
+
+    private static char[] obtainBuffer() {
+        char[] buffer;
+        synchronized (sBufferPool) {
+            buffer = sBufferPool.poll();
+        }
+        return buffer != null ? buffer : new char[READ_BUFFER_SIZE];
+    }
+
+    private static void recycleBuffer(char[] buffer) {
+        synchronized (sBufferPool) {
+            if (sBufferPool.size() < MAX_POOLED_BUFFERS) sBufferPool.push(buffer);
+        }
+    }
+
+    /**
+     * Drops the pooled read buffers, returns about how many bytes they held. Requests
+     * allocate new ones as they need them.
+     */
+    public static long releaseBuffers() {
+        synchronized (sBufferPool) {
+            long bytes = sBufferPool.size() * READ_BUFFER_SIZE * 2L;
+            sBufferPool.clear();
+            return bytes;
+        }
+    }
 }
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.location.Location;
+
+import mokee.weather.RequestInfo;
+import mokee.weather.WeatherLocation;
+
+/**
+ * Stable keys identifying the place a weather request is about, used to index per-location
+ * state across requests and process restarts.
+ */
+public class LocationKeys {
+
+    // About 5km, the weather won't change that much in such short distance
+    private static final double GEO_CELL_DEGREES = 0.05d;
+
+    public static String forRequest(RequestInfo requestInfo) {
+        switch (requestInfo.getRequestType()) {
+            case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
+                return forWeatherLocation(requestInfo.getWeatherLocation());
+            case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ:
+                return forGeoLocation(requestInfo.getLocation());
+        }
+        return null;
+    }
+
+    public static String forWeatherLocation(WeatherLocation location) {
+        if (location == null) return null;
+        return forCity(location.getCountryId(), location.getCityId());
+    }
+
+    public static String forCity(String countryId, String cityId) {
+        return "city:" + countryId + ":" + cityId;
+    }
+
+    public static String forGeoLocation(Location location) {
+        if (location == null) return null;
+        return "geo:" + (long) Math.floor(location.getLatitude() / GEO_CELL_DEGREES)
+                + ":" + (long) Math.floor(location.getLongitude() / GEO_CELL_DEGREES);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import mokee.weather.WeatherLocation;
+
+/**
+ * Recent OpenWeatherMap city searches, keyed by normalised query and language. Cities don't
+ * move, so results are kept for a week and persisted; users mostly search for the same few
+ * places and get them without a round trip.
+ */
+public class LocationSearchCache {
+
+    private static final String TAG = LocationSearchCache.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final String FILE_NAME = "location_search.json";
+    private static final int MAX_ENTRIES = 64;
+    public static final long TTL = 1000L * 60L * 60L * 24L * 7L;
+
+    private static class Entry {
+        final List<WeatherLocation> locations;
+        final long timestamp;
+
+        Entry(List<WeatherLocation> locations, long timestamp) {
+            this.locations = locations;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static LocationSearchCache sInstance;
+
+    private final File mFile;
+    // Access ordered, the eldest entry is the least recently used
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    // False once shed, the entries are read from the file again on next use
+    private boolean mLoaded;
+
+    private LocationSearchCache(Context context) {
+        mFile = new File(context.getNoBackupFilesDir(), FILE_NAME);
+        ensureLoaded();
+    }
+
+    public static synchronized LocationSearchCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = new LocationSearchCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Drops the entries held in memory, returns about how many bytes they held. They are
+     * still on disk and read back by the next get or put.
+     */
+    public static long shed() {
+        LocationSearchCache cache;
+        synchronized (LocationSearchCache.class) {
+            cache = sInstance;
+        }
+        return cache != null ? cache.unload() : 0;
+    }
+
+    /**
+     * Returns the key of a search for query, which differs from other searches only in case
+     * or surrounding space, whatever the default locale.
+     */
+    public static String keyOf(String query, String languageCode) {
+        return query.trim().toLowerCase(Locale.ROOT) + "|" + languageCode;
+    }
+
+    /**
+     * Returns a copy of the cached results for key, or null if there are none younger than TTL.
+     */
+    public synchronized ArrayList<WeatherLocation> get(String key) {
+        if (TraceRecorder.isReplaying()) return null;
+        ensureLoaded();
+        Entry entry = mEntries.get(key);
+        if (entry == null || !isFresh(entry.timestamp)) {
+            ProviderMetrics.increment("location_search_misses");
+            return null;
+        }
+        ProviderMetrics.increment("location_search_hits");
+        TraceRecorder.markCacheHit();
+        return new ArrayList<>(entry.locations);
+    }
+
+    public synchronized void put(String key, List<WeatherLocation> locations) {
+        if (TraceRecorder.isReplaying()) return;
+        // The file is rewritten from memory, entries that were shed must be back first
+        ensureLoaded();
+        mEntries.put(key, new Entry(new ArrayList<>(locations), System.currentTimeMillis()));
+        save();
+    }
+
+    private static boolean isFresh(long timestamp) {
+        long age = System.currentTimeMillis() - timestamp;
+        return age >= 0 && age < TTL;
+    }
+
+    private synchronized long unload() {
+        if (!mLoaded) return 0;
+        long bytes = 0;
+        for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+            bytes += MemoryTrimmer.sizeOf(entry.getKey()) + 64;
+            for (WeatherLocation location : entry.getValue().locations) {
+                bytes += 48 + MemoryTrimmer.sizeOf(location.getCityId())
+                        + MemoryTrimmer.sizeOf(location.getCity())
+                        + MemoryTrimmer.sizeOf(location.getCountry());
+            }
+        }
+        mEntries.clear();
+        mLoaded = false;
+        return bytes;
+    }
+
+    private synchronized void ensureLoaded() {
+        if (mLoaded) return;
+        mLoaded = true;
+        load();
+    }
+
+    private void load() {
+        if (!mFile.exists()) return;
+        try (InputStream in = new FileInputStream(mFile)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, count);
+            }
+            // Saved least recently used first, so inserting in order restores the LRU order
+            JSONArray json = new JSONArray(new String(bytes.toByteArray(),
+                    StandardCharsets.UTF_8));
+            for (int i = 0; i < json.length(); i++) {
+                JSONObject jsonEntry = json.getJSONObject(i);
+                long timestamp = jsonEntry.getLong("time");
+                if (!isFresh(timestamp)) continue;
+                JSONArray jsonLocations = jsonEntry.getJSONArray("locations");
+                List<WeatherLocation> locations = new ArrayList<>(jsonLocations.length());
+                for (int l = 0; l < jsonLocations.length(); l++) {
+                    JSONObject location = jsonLocations.getJSONObject(l);
+                    locations.add(new WeatherLocation.Builder(location.getString("id"),
+                            location.getString("city"))
+                            .setCountry(location.getString("country")).build());
+                }
+                mEntries.put(jsonEntry.getString("key"), new Entry(locations, timestamp));
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Discarding unreadable location search cache", e);
+            mFile.delete();
+        }
+    }
+
+    private void save() {
+        JSONArray json = new JSONArray();
+        try {
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                JSONArray jsonLocations = new JSONArray();
+                for (WeatherLocation location : entry.getValue().locations) {
+                    jsonLocations.put(new JSONObject()
+                            .put("id", location.getCityId())
+                            .put("city", location.getCity())
+                            .put("country", location.getCountry()));
+                }
+                json.put(new JSONObject()
+                        .put("key", entry.getKey())
+                        .put("time", entry.getValue().timestamp)
+                        .put("locations", jsonLocations));
+            }
+        } catch (JSONException e) {
+            return;
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            if (DEBUG) Log.w(TAG, "Unable to save location search cache", e);
+            return;
+        }
+        tmp.renameTo(mFile);
+    }
+}
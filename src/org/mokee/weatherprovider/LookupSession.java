@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import mokee.weather.WeatherLocation;
+import mokee.weatherservice.ServiceRequest;
+
+/**
+ * City lookups arrive one per keystroke while the user types. The session keeps them from
+ * piling up: a lookup whose query extends an unfinished one supersedes it, remote searches
+ * wait for typing to pause, and a query the same as the previous one, as when a character is
+ * typed and deleted again, gets the previous local matches instead of searching the table.
+ *
+ * Queries match the way they always did, English names whole and Chinese names contained in
+ * the query, so a longer query doesn't narrow a shorter one's matches and can't reuse them.
+ *
+ * Lookups reach the provider through the weather manager without any client identity, so
+ * every lookup belongs to one session.
+ */
+public class LookupSession {
+
+    private static final String TAG = LookupSession.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    // Remote searches only start once no newer keystroke arrived for this long
+    private static final long DEBOUNCE = 400L;
+    // Local matches may be reused for this long, delta sync may change the table after
+    private static final long CANDIDATES_TTL = 60L * 1000L;
+
+    private final RequestRegistry mRequestRegistry;
+    private final Map<ServiceRequest, String> mPending = new LinkedHashMap<>();
+
+    private String mLastQuery;
+    private ArrayList<WeatherLocation> mLastLocations;
+    private long mLastTime;
+
+    public LookupSession(RequestRegistry requestRegistry) {
+        mRequestRegistry = requestRegistry;
+    }
+
+    /**
+     * Normalises user input the way names are stored: lower case, trimmed.
+     */
+    public static String normalize(String input) {
+        return input.trim().toLowerCase();
+    }
+
+    /**
+     * Starts tracking a lookup for query, failing and cancelling the unfinished lookups it
+     * supersedes.
+     */
+    public synchronized void start(ServiceRequest request, String query) {
+        Iterator<Map.Entry<ServiceRequest, String>> it = mPending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<ServiceRequest, String> entry = it.next();
+            if (!query.startsWith(entry.getValue())) continue;
+            it.remove();
+            if (mRequestRegistry.cancel(entry.getKey())) {
+                if (DEBUG) Log.d(TAG, "'" + query + "' supersedes '" + entry.getValue() + "'");
+                ProviderMetrics.increment("lookup_superseded");
+                entry.getKey().fail();
+            }
+        }
+        mPending.put(request, query);
+    }
+
+    public synchronized void finish(ServiceRequest request) {
+        mPending.remove(request);
+    }
+
+    /**
+     * Returns the local matches of the previous lookup if it was for query, or null if the
+     * table has to be searched.
+     */
+    public synchronized ArrayList<WeatherLocation> recall(String query) {
+        if (mLastQuery == null || !mLastQuery.equals(query)
+                || SystemClock.elapsedRealtime() - mLastTime >= CANDIDATES_TTL) {
+            return null;
+        }
+        ProviderMetrics.increment("lookup_recalled");
+        return mLastLocations;
+    }
+
+    public synchronized void remember(String query, ArrayList<WeatherLocation> locations) {
+        mLastQuery = query;
+        mLastLocations = locations;
+        mLastTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Forgets the previous local matches to free memory, returns about how many bytes they
+     * held. The next lookup searches the table instead of reusing them.
+     */
+    public synchronized long shed() {
+        long bytes = 0;
+        if (mLastLocations != null) {
+            for (WeatherLocation location : mLastLocations) {
+                // Rough heap footprint of the location and its strings
+                bytes += 48 + MemoryTrimmer.sizeOf(location.getCity())
+                        + MemoryTrimmer.sizeOf(location.getCityId())
+                        + MemoryTrimmer.sizeOf(location.getCountry());
+            }
+        }
+        mLastQuery = null;
+        mLastLocations = null;
+        return bytes;
+    }
+
+    /**
+     * Waits for typing to pause before a remote search. Throws if a newer lookup superseded
+     * this one meanwhile.
+     */
+    public void awaitQuiet(CancellationSignal signal) {
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+            @Override
+            public void onCancel() {
+                cancelled.countDown();
+            }
+        });
+        try {
+            cancelled.await(DEBOUNCE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            signal.setOnCancelListener(null);
+        }
+        signal.throwIfCanceled();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+/**
+ * Gives memory back when the system asks for it, in tiers by how hard it is pressed, so the
+ * provider's caches don't make it the first process to be killed:
+ *
+ * 1. Pooled read buffers, as soon as memory runs low.
+ * 2. The weather and location search caches and the preferred addresses, once the process
+ *    is in the background or memory is critically low. Weather entries come back from the
+ *    snapshot store and searches from their file on next use, addresses are tried in the
+ *    resolver's order again.
+ * 3. The mapped city index, once the process is among the next to be killed. The next lookup
+ *    maps it again. Only its overlay is heap, the mapping's pages are the file's.
+ *
+ * Freed bytes are recorded per tier and count heap only.
+ *
+ * Requests disconnect their connection when done, so there are no idle ones to close, and
+ * lookups open and close the database themselves.
+ */
+public class MemoryTrimmer {
+
+    private static final String TAG = MemoryTrimmer.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final int TIER_NONE = 0;
+    public static final int TIER_BUFFERS = 1;
+    public static final int TIER_CACHES = 2;
+    public static final int TIER_INDEX = 3;
+
+    /**
+     * Returns the highest tier to shed at a trim level of ComponentCallbacks2.
+     */
+    public static int getTier(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) return TIER_INDEX;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return TIER_CACHES;
+        }
+        // Includes TRIM_MEMORY_UI_HIDDEN, the settings screen going away frees little else
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) return TIER_BUFFERS;
+        return TIER_NONE;
+    }
+
+    /**
+     * Sheds the process wide state of every tier up to the one for level.
+     */
+    public static void trim(int level) {
+        int tier = getTier(level);
+        if (tier >= TIER_BUFFERS) {
+            addFreed(TIER_BUFFERS, HttpRetriever.releaseBuffers());
+        }
+        if (tier >= TIER_CACHES) {
+            addFreed(TIER_CACHES, WeatherCache.getInstance().shed()
+                    + LocationSearchCache.shed() + HostResolver.getInstance().shed());
+        }
+        if (tier >= TIER_INDEX) {
+            addFreed(TIER_INDEX, CityIndex.release());
+        }
+        if (tier > TIER_NONE) {
+            ProviderMetrics.increment("trim_tier" + tier);
+            if (DEBUG) Log.d(TAG, "Trimmed up to tier " + tier + " at level " + level);
+        }
+    }
+
+    /**
+     * Records that shedding tier freed about bytes, for state held outside of trim.
+     */
+    public static void addFreed(int tier, long bytes) {
+        ProviderMetrics.add("trim_tier" + tier + "_freed_bytes", bytes);
+    }
+
+    /**
+     * Returns the rough heap footprint of s, 0 for null.
+     */
+    public static long sizeOf(String s) {
+        return s != null ? 24 + 2L * s.length() : 0;
+    }
+}
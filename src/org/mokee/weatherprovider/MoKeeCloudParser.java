@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.os.CancellationSignal;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import mokee.providers.WeatherContract;
+
+/**
+ * Turns the per-city weather objects of the MoKee cloud, as returned by getWeatherByCityIDv2
+ * and pushed by its update stream, into canonical cache entries.
+ */
+public class MoKeeCloudParser {
+
+    public static final String MAIN_NODE = "MoKeeWeather data service 2.0";
+
+    /**
+     * Current conditions and forecast of one city. The cloud always sends both together.
+     */
+    public static class Result {
+        public final WeatherCache.Conditions conditions;
+        public final WeatherCache.Forecast forecast;
+
+        Result(WeatherCache.Conditions conditions, WeatherCache.Forecast forecast) {
+            this.conditions = conditions;
+            this.forecast = forecast;
+        }
+    }
+
+    /**
+     * Parses the first city of a getWeatherByCityIDv2 response.
+     */
+    public static Result parseResponse(String response, String cityName, String cityNameEn,
+            RequestDeadline deadline, CancellationSignal signal) throws JSONException {
+        return parse(new JSONObject(response).getJSONArray(MAIN_NODE).getJSONObject(0),
+                cityName, cityNameEn, deadline, signal);
+    }
+
+    public static Result parse(JSONObject weather, String cityName, String cityNameEn,
+            RequestDeadline deadline, CancellationSignal signal) throws JSONException {
+        JSONObject main = weather.getJSONObject("now");
+        WeatherCache.Forecast forecast = parseForecasts(
+                weather.getJSONArray("daily_forecast"), true, signal);
+        // AQI and UV are extras, the forecast above is all a result needs
+        int aqi = WeatherLabels.AQI_NOT_AVAILABLE;
+        if (weather.has("aqi") && deadline.allowOptional(RequestDeadline.FIELD_AQI)) {
+            JSONObject aqiInfo = weather.getJSONObject("aqi").getJSONObject("city");
+            aqi = aqiInfo.getInt("aqi");
+        }
+        int uvLevel = WeatherLabels.UV_NOT_AVAILABLE;
+        String uvBrief = null;
+        if (weather.has("suggestion") && deadline.allowOptional(RequestDeadline.FIELD_UV)) {
+            JSONObject suggestion = weather.getJSONObject("suggestion");
+            if (suggestion.has("uv")) {
+                String brief = suggestion.getJSONObject("uv").getString("brf");
+                uvLevel = WeatherLabels.getUVLevel(brief);
+                // Shown as it is rather than dropped
+                if (uvLevel == WeatherLabels.UV_NOT_AVAILABLE) uvBrief = brief;
+            }
+        }
+        JSONObject wind = main.getJSONObject("wind");
+        WeatherCache.Conditions conditions = new WeatherCache.Conditions(cityName, cityNameEn,
+                GlobalWeatherProvider.sanitizeTemperature(main.getDouble("tmp"), true),
+                main.getDouble("hum"), wind.getDouble("spd"), wind.getDouble("deg"),
+                forecast.getLow(0), forecast.getHigh(0),
+                mapConditionIconToCode(main.getJSONObject("cond").getInt("code")), aqi, uvLevel,
+                uvBrief, System.currentTimeMillis());
+        return new Result(conditions, forecast);
+    }
+
+    // Fills the cache's arrays straight from the JSON, skipping days already past by index
+    // rather than removing them, which would change the object for whoever else holds it
+    private static WeatherCache.Forecast parseForecasts(JSONArray forecasts, boolean metric,
+            CancellationSignal signal) throws JSONException {
+        if (forecasts.length() == 0) {
+            throw new JSONException("Empty forecasts array");
+        }
+        long now = System.currentTimeMillis();
+        // The cloud still starts with yesterday for a while after midnight
+        long firstDay = parseDay(forecasts.getJSONObject(0).getString("date"));
+        int first = (int) Math.max(0, Math.min(WeatherCache.dayOf(now) - firstDay,
+                forecasts.length() - GlobalWeatherProvider.FORECAST_DAYS));
+        int[] conditionCodes = new int[GlobalWeatherProvider.FORECAST_DAYS];
+        double[] lows = new double[GlobalWeatherProvider.FORECAST_DAYS];
+        double[] highs = new double[GlobalWeatherProvider.FORECAST_DAYS];
+        for (int i = 0; i < GlobalWeatherProvider.FORECAST_DAYS; i++) {
+            signal.throwIfCanceled();
+            JSONObject forecast = forecasts.getJSONObject(first + i);
+            JSONObject temperature = forecast.getJSONObject("tmp");
+            conditionCodes[i] = mapConditionIconToCode(
+                    forecast.getJSONObject("cond").getInt("code_d"));
+            lows[i] = GlobalWeatherProvider.sanitizeTemperature(
+                    temperature.getDouble("min"), metric);
+            highs[i] = GlobalWeatherProvider.sanitizeTemperature(
+                    temperature.getDouble("max"), metric);
+        }
+        // Starts on the day the cloud says, the cache rolls it forward from there
+        return new WeatherCache.Forecast(conditionCodes, lows, highs, now, firstDay + first);
+    }
+
+    private static int mapConditionIconToCode(int conditionId) {
+        switch (conditionId) {
+            case 100: //晴
+                return WeatherContract.WeatherColumns.WeatherCode.SUNNY;
+            case 101: //多云
+                return WeatherContract.WeatherColumns.WeatherCode.CLOUDY;
+            case 102: //少云
+                return WeatherContract.WeatherColumns.WeatherCode.FEW_CLOUDS;
+            case 103: //晴间多云
+                return WeatherContract.WeatherColumns.WeatherCode.PARTLY_CLOUDY;
+            case 104: //阴
+                return WeatherContract.WeatherColumns.WeatherCode.OVERCAST;
+            case 200: //有风
+                return WeatherContract.WeatherColumns.WeatherCode.WINDY;
+            case 201: //平静
+                return WeatherContract.WeatherColumns.WeatherCode.CALM;
+            case 202: //微风
+                return WeatherContract.WeatherColumns.WeatherCode.LIGHT_BREEZE;
+            case 203: //和风
+                return WeatherContract.WeatherColumns.WeatherCode.MODERATE_BREEZE;
+            case 204: //清风
+                return WeatherContract.WeatherColumns.WeatherCode.FRESH_BREEZE;
+            case 205: //强风/劲风
+                return WeatherContract.WeatherColumns.WeatherCode.STRONG_BREEZE;
+            case 206: //疾风
+                return WeatherContract.WeatherColumns.WeatherCode.HIGH_WIND;
+            case 207: //大风
+                return WeatherContract.WeatherColumns.WeatherCode.GALE;
+            case 208: //烈风
+                return WeatherContract.WeatherColumns.WeatherCode.STRONG_GALE;
+            case 209: //风暴
+                return WeatherContract.WeatherColumns.WeatherCode.STORM;
+            case 210: //狂爆风
+                return WeatherContract.WeatherColumns.WeatherCode.VIOLENT_STORM;
+            case 211: //飓风
+                return WeatherContract.WeatherColumns.WeatherCode.HURRICANE;
+            case 212: //龙卷风
+                return WeatherContract.WeatherColumns.WeatherCode.TORNADO;
+            case 213: //热带风暴
+                return WeatherContract.WeatherColumns.WeatherCode.TROPICAL_STORM;
+            case 300: //阵雨
+                return WeatherContract.WeatherColumns.WeatherCode.SHOWER_RAIN;
+            case 301: //强阵雨
+                return WeatherContract.WeatherColumns.WeatherCode.HEAVY_SHOWER_RAIN;
+            case 302: //雷阵雨
+                return WeatherContract.WeatherColumns.WeatherCode.THUNDERSHOWER;
+            case 303: //强雷阵雨
+                return WeatherContract.WeatherColumns.WeatherCode.HEAVY_THUNDERSTORM;
+            case 304: //雷阵雨伴有冰雹
+                return WeatherContract.WeatherColumns.WeatherCode.HAIL;
+            case 305: //小雨
+                return WeatherContract.WeatherColumns.WeatherCode.LIGHT_RAIN;
+            case 306: //中雨
+                return WeatherContract.WeatherColumns.WeatherCode.MODERATE_RAIN;
+            case 307: //大雨
+                return WeatherContract.WeatherColumns.WeatherCode.HEAVY_RAIN;
+            case 308: //极端降雨
+                return WeatherContract.WeatherColumns.WeatherCode.EXTREME_RAIN;
+            case 309: //毛毛雨/细雨
+                return WeatherContract.WeatherColumns.WeatherCode.DRIZZLE_RAIN;
+            case 310: //暴雨
+                return WeatherContract.WeatherColumns.WeatherCode.RAIN_STORM;
+            case 311: //大暴雨
+                return WeatherContract.WeatherColumns.WeatherCode.HEAVY_RAIN_STORM;
+            case 312: //特大暴雨
+                return WeatherContract.WeatherColumns.WeatherCode.SEVERE_RAIN_STORM;
+            case 313: //冻雨
+                return WeatherContract.WeatherColumns.WeatherCode.FREEZING_RAIN;
+            case 400: //小雪
+                return WeatherContract.WeatherColumns.WeatherCode.LIGHT_SNOW;
+            case 401: //中雪
+                return WeatherContract.WeatherColumns.WeatherCode.MODERATE_SNOW;
+            case 402: //大雪
+                return WeatherContract.WeatherColumns.WeatherCode.HEAVY_SNOW;
+            case 403: //暴雪
+                return WeatherContract.WeatherColumns.WeatherCode.SNOWSTORM;
+            case 404: //雨夹雪
+                return WeatherContract.WeatherColumns.WeatherCode.SLEET;
+            case 405: //雨雪天气
+                return WeatherContract.WeatherColumns.WeatherCode.RAIN_WITH_SNOW;
+            case 406: //阵雨夹雪
+                return WeatherContract.WeatherColumns.WeatherCode.SHOWER_SNOW;
+            case 407: //阵雪
+                return WeatherContract.WeatherColumns.WeatherCode.SNOW_FLURRY;
+            case 500: //薄雾
+                return WeatherContract.WeatherColumns.WeatherCode.MIST;
+            case 501: //雾
+                return WeatherContract.WeatherColumns.WeatherCode.FOGGY;
+            case 502: //霾
+                return WeatherContract.WeatherColumns.WeatherCode.HAZE;
+            case 503: //扬沙
+                return WeatherContract.WeatherColumns.WeatherCode.SAND;
+            case 504: //浮尘
+                return WeatherContract.WeatherColumns.WeatherCode.DUST;
+            case 506: //火山灰
+                return WeatherContract.WeatherColumns.WeatherCode.VOLCANIC_ASH;
+            case 507: //沙尘暴
+                return WeatherContract.WeatherColumns.WeatherCode.DUSTSTORM;
+            case 508: //强沙尘暴
+                return WeatherContract.WeatherColumns.WeatherCode.SANDSTORM;
+            case 900: //热
+                return WeatherContract.WeatherColumns.WeatherCode.HOT;
+            case 901: //冷
+                return WeatherContract.WeatherColumns.WeatherCode.COLD;
+        }
+        return WeatherContract.WeatherColumns.WeatherCode.NOT_AVAILABLE;
+    }
+
+    /**
+     * Returns the day number of a yyyy-MM-dd date, counted like WeatherCache.dayOf.
+     */
+    static long parseDay(String date) throws JSONException {
+        if (date.length() < 10 || date.charAt(4) != '-' || date.charAt(7) != '-') {
+            throw new JSONException("Unexpected date " + date);
+        }
+        long year = parseDigits(date, 0, 4);
+        int month = parseDigits(date, 5, 7);
+        int day = parseDigits(date, 8, 10);
+        // Days since 1970-01-01 in the proleptic Gregorian calendar, years starting in March
+        // so the leap day comes last
+        if (month <= 2) year--;
+        long era = Math.floorDiv(year, 400);
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static int parseDigits(String date, int start, int end) throws JSONException {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = date.charAt(i);
+            if (c < '0' || c > '9') throw new JSONException("Unexpected date " + date);
+            value = value * 10 + c - '0';
+        }
+        return value;
+    }
+}
@@ -17,6 +17,8 @@
 package org.mokee.weatherprovider;
 
 import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -37,15 +39,27 @@ public class MoKeeWeatherApplication extends Application {
     protected static final String URL_PLACEFINDER = getPlaceFinderURL();
 
     @Override
-    public void onCreate() {
-        super.onCreate();
-        File databaseFile = getDatabasePath(DatabaseContracts.DB_NAME);
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        MemoryTrimmer.trim(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        MemoryTrimmer.trim(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    // Made the first time something opens the database, which is building the city index on
+    // first start
+    protected static synchronized void ensureDatabase(Context context) {
+        File databaseFile = context.getDatabasePath(DatabaseContracts.DB_NAME);
         if (databaseFile.exists()) {
             return;
         } else {
             databaseFile.getParentFile().mkdirs();
             try {
-                InputStream inputStream = getAssets().open(DatabaseContracts.DB_NAME);
+                InputStream inputStream = context.getAssets().open(DatabaseContracts.DB_NAME);
                 FileOutputStream fileOutputStream = new FileOutputStream(databaseFile.getAbsolutePath());
                 byte[] buffer = new byte[512];
                 int count = 0;
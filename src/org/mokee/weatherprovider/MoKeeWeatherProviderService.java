@@ -16,22 +16,37 @@
 
 package org.mokee.weatherprovider;
 
-import java.text.SimpleDateFormat;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Locale;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.location.Location;
-import android.mokee.utils.MoKeeUtils;
+import android.net.ConnectivityManager;
 import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
 import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -40,11 +55,9 @@ import com.mokee.security.RSAUtils;
 import net.sqlcipher.Cursor;
 import net.sqlcipher.database.SQLiteDatabase;
 
-import mokee.providers.WeatherContract;
 import mokee.weather.MKWeatherManager;
 import mokee.weather.RequestInfo;
 import mokee.weather.WeatherInfo;
-import mokee.weather.WeatherInfo.DayForecast;
 import mokee.weather.WeatherLocation;
 import mokee.weatherservice.ServiceRequest;
 import mokee.weatherservice.ServiceRequestResult;
@@ -57,28 +70,131 @@ public class MoKeeWeatherProviderService extends WeatherProviderService {
     private static final String TAG = MoKeeWeatherProviderService.class.getSimpleName();
     private static final boolean DEBUG = false;
 
-    private static final String MOKEE_API_MAIN_NODE = "MoKeeWeather data service 2.0";
-
-    private static final String URL_PARAM_LATITUDE_LONGITUDE = "lat=%f&lon=%f";
-    private static final String URL_PARAM_CITY_ID = "id=%s";
-
     private static final String URL_WEATHER =
             "http://cloud.mokeedev.com/weather/getWeatherByCityIDv2";
 
-    private Map<ServiceRequest,WeatherUpdateRequestTask> mWeatherUpdateRequestMap = new HashMap<>();
-    private Map<ServiceRequest,LookupCityNameRequestTask> mLookupCityRequestMap = new HashMap<>();
+    // Changesets for the city database are dropped here until there is a remote source
+    private static final String CITY_CHANGESET_DIR = "citysync";
+
+    private final RequestRegistry mRequestRegistry = new RequestRegistry();
+    private final LookupSession mLookupSession = new LookupSession(mRequestRegistry);
+    private FetchPolicy<RequestInfo> mFetchPolicy;
+    private WeatherPushClient mPushClient;
+
+    // Request tasks block on the bulkheads of their upstreams, AsyncTask's few shared threads
+    // would all end up waiting on one that hangs. Requests are rejected once it's saturated
+    private static final ThreadPoolExecutor REQUEST_EXECUTOR = Bulkhead.newCallerExecutor(
+            "WeatherRequest", 4, 4, 2, Bulkhead.MOKEE, Bulkhead.PLACEFINDER, Bulkhead.OWM);
+    // Remote searches get threads of their own, on REQUEST_EXECUTOR they could wait behind
+    // the lookups waiting for them. They only call OpenWeatherMap
+    private static final ThreadPoolExecutor REMOTE_LOOKUP_EXECUTOR = Bulkhead.newCallerExecutor(
+            "LookupRemote", 1, 2, 0, Bulkhead.OWM);
+
+    // Longest pause between two replayed requests, however long it was when recorded
+    private static final long MAX_REPLAY_GAP = 10L * 1000L;
 
-    //MoKeeWeather recommends to wait 10 min between requests
-    private final static long REQUEST_THRESHOLD = 1000L * 60L * 10L;
-    private long mLastRequestTimestamp = -REQUEST_THRESHOLD;
-    public static WeatherLocation mLastWeatherLocation;
-    public static Location mLastLocation;
-    //5km of threshold, the weather won't change that much in such short distance
-    private static final float LOCATION_DISTANCE_METERS_THRESHOLD = 5f * 1000f;
+    // No published quota for the placefinder key, keep bursts bounded
+    private static final RequestRateLimiter.Bucket PLACEFINDER_QUOTA =
+            new RequestRateLimiter.Bucket("placefinder", MoKeeWeatherApplication.API_KEY,
+                    60, 60L * 1000L);
 
     @Override
     public void onCreate() {
         mContext = getApplicationContext();
+        mFetchPolicy = new FetchPolicy<>(new SystemConnectivityState(mContext));
+        FetchPolicy.install(mFetchPolicy);
+        EndpointSelector.get(mContext);
+        registerReceiver(mConnectivityReceiver,
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        mPushClient = new WeatherPushClient(mContext);
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        prefs.registerOnSharedPreferenceChangeListener(mPreferenceListener);
+        updatePushClient(prefs);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                prefetchUpstreamHosts();
+                // Serve what the last process fetched until this one has refreshed it
+                new WeatherSnapshotStore(mContext).restoreInto(WeatherCache.getInstance());
+                CityIndex.build(mContext);
+                new CityDeltaSync(mContext, new CityDeltaSync.FileChangesetSource(
+                        new File(mContext.getFilesDir(), CITY_CHANGESET_DIR))).sync();
+            }
+        });
+    }
+
+    @Override
+    public void onDestroy() {
+        unregisterReceiver(mConnectivityReceiver);
+        PreferenceManager.getDefaultSharedPreferences(mContext)
+                .unregisterOnSharedPreferenceChangeListener(mPreferenceListener);
+        mPushClient.stop();
+        FetchPolicy.install(null);
+        super.onDestroy();
+    }
+
+    // The application sheds the process wide state, the lookup session belongs to the service
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (MemoryTrimmer.getTier(level) >= MemoryTrimmer.TIER_CACHES) {
+            MemoryTrimmer.addFreed(MemoryTrimmer.TIER_CACHES, mLookupSession.shed());
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        MemoryTrimmer.addFreed(MemoryTrimmer.TIER_CACHES, mLookupSession.shed());
+    }
+
+    private final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // Addresses that were best on the previous network may not be on this one
+            HostResolver.getInstance().clear();
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    prefetchUpstreamHosts();
+                }
+            });
+            List<RequestInfo> refreshes = mFetchPolicy.drainReady();
+            if (!refreshes.isEmpty()) {
+                if (DEBUG) Log.d(TAG, "Flushing " + refreshes.size() + " held refreshes");
+                try {
+                    new RefreshBatchTask().executeOnExecutor(REQUEST_EXECUTOR,
+                            refreshes.toArray(new RequestInfo[0]));
+                } catch (RejectedExecutionException e) {
+                    // Busy with requests already, they come again on their next interval
+                    ProviderMetrics.increment("requests_rejected_saturated");
+                }
+            }
+        }
+    };
+
+    private void prefetchUpstreamHosts() {
+        if (!mFetchPolicy.canReachNetwork()) return;
+        HostResolver.getInstance().prefetch(MoKeeWeatherApplication.URL_PLACEFINDER);
+        HostResolver.getInstance().prefetch(EndpointSelector.get(mContext).getEndpointUrls());
+    }
+
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPreferenceListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+            if (WeatherPushClient.PREF_ENABLED.equals(key)) {
+                updatePushClient(prefs);
+            }
+        }
+    };
+
+    private void updatePushClient(SharedPreferences prefs) {
+        if (prefs.getBoolean(WeatherPushClient.PREF_ENABLED, false)) {
+            mPushClient.start();
+        } else {
+            mPushClient.stop();
+        }
     }
 
     @Override
@@ -87,54 +203,140 @@ public class MoKeeWeatherProviderService extends WeatherProviderService {
         int requestType = requestInfo.getRequestType();
         if (DEBUG) Log.d(TAG, "Received request type " + requestType);
 
-        if (((requestType == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ &&
-                isSameGeoLocation(requestInfo.getLocation(), mLastLocation))
-                    || (requestType == RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ &&
-                        isSameWeatherLocation(requestInfo.getWeatherLocation(),
-                                mLastWeatherLocation))) && requestSubmittedTooSoon()) {
+        if ((requestType == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ
+                || requestType == RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ)
+                && serveFromPolicy(request)) {
+            return;
+        }
+
+        if ((requestType == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ
+                || requestType == RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ)
+                && !tryAcquireLocation(requestInfo)) {
             request.reject(MKWeatherManager.RequestStatus.SUBMITTED_TOO_SOON);
             return;
         }
 
+        // Requests run side by side, each upstream's Bulkhead keeps a slow one from holding up
+        // the others, see REQUEST_EXECUTOR
         switch (requestType) {
             case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ:
             case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
-                synchronized (mWeatherUpdateRequestMap) {
-                    WeatherUpdateRequestTask weatherTask = new WeatherUpdateRequestTask(request);
-                    mWeatherUpdateRequestMap.put(request, weatherTask);
-                    mLastRequestTimestamp = SystemClock.elapsedRealtime();
-                    weatherTask.execute();
+                WeatherUpdateRequestTask weatherTask = new WeatherUpdateRequestTask(requestInfo, request);
+                mRequestRegistry.register(request, weatherTask, weatherTask.mUpdate.mSignal);
+                if (!execute(weatherTask)) {
+                    mRequestRegistry.finish(request, weatherTask);
+                    request.fail();
                 }
                 break;
             case RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ:
-                synchronized (mLookupCityRequestMap) {
-                    LookupCityNameRequestTask lookupTask = new LookupCityNameRequestTask(request);
-                    mLookupCityRequestMap.put(request, lookupTask);
-                    lookupTask.execute();
+                LookupCityNameRequestTask lookupTask = new LookupCityNameRequestTask(request);
+                mLookupSession.start(request, lookupTask.mSearchText);
+                mRequestRegistry.register(request, lookupTask, lookupTask.mSignal);
+                if (!execute(lookupTask)) {
+                    mRequestRegistry.finish(request, lookupTask);
+                    mLookupSession.finish(request);
+                    request.fail();
                 }
                 break;
         }
     }
 
-    private boolean requestSubmittedTooSoon() {
-        final long now = SystemClock.elapsedRealtime();
-        if (DEBUG) Log.d(TAG, "Now " + now + " last request " + mLastRequestTimestamp);
-        return (mLastRequestTimestamp + REQUEST_THRESHOLD > now);
+    // Runs task on REQUEST_EXECUTOR, false if that is saturated
+    private static boolean execute(AsyncTask<Void, ?, ?> task) {
+        try {
+            task.executeOnExecutor(REQUEST_EXECUTOR);
+            return true;
+        } catch (RejectedExecutionException e) {
+            ProviderMetrics.increment("requests_rejected_saturated");
+            return false;
+        }
     }
-    
-    private class WeatherUpdateRequestTask extends AsyncTask<Void, Void, WeatherInfo> {
-        final ServiceRequest mRequest;
-        public WeatherUpdateRequestTask(ServiceRequest request) {
-            mRequest = request;
+
+    // Locations with fast changing weather may be refreshed sooner than the usual interval
+    private boolean tryAcquireLocation(RequestInfo requestInfo) {
+        String key = LocationKeys.forRequest(requestInfo);
+        return RequestRateLimiter.get(mContext).tryAcquireLocation(key,
+                WeatherCache.getInstance().getConditionsTtl(key));
+    }
+
+    /**
+     * Answers a weather request from the cache when the network policy holds it back. Returns
+     * false if the request should go upstream.
+     */
+    private boolean serveFromPolicy(ServiceRequest request) {
+        RequestInfo requestInfo = request.getRequestInfo();
+        String key = LocationKeys.forRequest(requestInfo);
+        WeatherCache.Conditions conditions = WeatherCache.getInstance().getConditions(key);
+        WeatherCache.Forecast forecast = WeatherCache.getInstance().getForecast(key);
+        boolean cached = conditions != null && forecast != null;
+        long age = cached ? System.currentTimeMillis() - conditions.timestamp : 0;
+        // Nothing to show for this location yet, someone is waiting on the first result
+        FetchPolicy.Decision decision = mFetchPolicy.decide(!cached, cached, age);
+        switch (decision) {
+            case FETCH:
+                return false;
+            case FAIL:
+                if (DEBUG) Log.d(TAG, "Offline and nothing cached for " + key);
+                ProviderMetrics.increment("offline_failed");
+                request.fail();
+                return true;
+            default:
+                if (DEBUG) Log.d(TAG, "Serving cached " + key + ", refresh " + decision);
+                ProviderMetrics.increment(decision == FetchPolicy.Decision.DEFER
+                        ? "metered_deferred" : "offline_served_cache");
+                mFetchPolicy.hold(decision, key, requestInfo);
+                request.complete(new ServiceRequestResult.Builder(WeatherCache.buildWeatherInfo(
+                        mContext, conditions, forecast, requestInfo.getTemperatureUnit())).build());
+                return true;
+        }
+    }
+
+    /**
+     * Runs the refreshes the network policy held back, one after the other.
+     */
+    private class RefreshBatchTask extends AsyncTask<RequestInfo, Void, Void> {
+        @Override
+        protected Void doInBackground(RequestInfo... refreshes) {
+            for (RequestInfo requestInfo : refreshes) {
+                if (!tryAcquireLocation(requestInfo)) {
+                    continue;
+                }
+                new WeatherUpdate(requestInfo).run();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Fetches the weather for one location, on whatever thread calls run(). Requests run it
+     * through WeatherUpdateRequestTask, RefreshBatchTask runs it directly.
+     */
+    private class WeatherUpdate {
+        final RequestInfo mRequestInfo;
+        final CancellationSignal mSignal = new CancellationSignal();
+        // Starts when the update is created, not when a worker picks it up
+        final RequestDeadline mDeadline = new RequestDeadline(RequestDeadline.DEFAULT_BUDGET);
+        final TraceRecorder.Trace mTrace;
+        public WeatherUpdate(RequestInfo requestInfo) {
+            this(requestInfo, TraceRecorder.get(mContext).begin(requestInfo));
+        }
+
+        WeatherUpdate(RequestInfo requestInfo, TraceRecorder.Trace trace) {
+            mRequestInfo = requestInfo;
+            mTrace = trace;
         }
 
         public WeatherInfo getWeatherInfo(Location location, boolean metric) {
-            StringBuffer params = new StringBuffer();
+            StringBuilder params = new StringBuilder(128);
             params.append("ak=").append(MoKeeWeatherApplication.API_KEY)
             .append("&callback=renderReverse&output=json&pois=1&")
             .append("location=").append(location.getLatitude()).append(",")
             .append(location.getLongitude());
-            String locationResponse = HttpRetriever.retrieve(MoKeeWeatherApplication.URL_PLACEFINDER, params.toString());
+            if (!RequestRateLimiter.get(mContext).tryAcquire(PLACEFINDER_QUOTA)) {
+                return null;
+            }
+            String locationResponse = HttpRetriever.retrieve(MoKeeWeatherApplication.URL_PLACEFINDER, params.toString(), mSignal,
+                    mDeadline.getTimeoutMillis());
             if (locationResponse != null) {
                 try {
                     JSONObject address = new JSONObject(locationResponse).getJSONObject("result").getJSONObject("addressComponent");
@@ -143,30 +345,48 @@ public class MoKeeWeatherProviderService extends WeatherProviderService {
                     String cityNameEn = "";
                     String areaID = "";
                     if (!resultCityName.isEmpty() && address.getInt("country_code") == 0) {
-                        DatabaseHelper databaseHelper = new DatabaseHelper(mContext);
-                        SQLiteDatabase sqLiteDatabase = databaseHelper.getReadableDatabase();
-                        Cursor cursor = sqLiteDatabase.query("weathers", DatabaseContracts.PROJECTION,
-                                "DISTRICTCN like '" + resultCityName + "'", null, null, null, null);
-                        while (cursor.moveToNext()) {
-                            String cityNameCn = cursor.getString(DatabaseContracts.NAMECN_INDEX);
-                            if (TextUtils.isEmpty(areaID) || !TextUtils.isEmpty(resultDistrictName) && resultDistrictName.contains(cityNameCn)) {
-                                areaID = cursor.getString(DatabaseContracts.AREAID_INDEX);
-                                resultCityName = cityNameCn;
-                                cityNameEn = cursor.getString(DatabaseContracts.NAMEEN_INDEX);
+                        CityIndex cityIndex = CityIndex.get(mContext);
+                        if (cityIndex != null) {
+                            for (int row : cityIndex.findEquals(DatabaseContracts.DISTRICTCN_INDEX, resultCityName)) {
+                                mSignal.throwIfCanceled();
+                                String cityNameCn = cityIndex.getString(row, DatabaseContracts.NAMECN_INDEX);
+                                if (TextUtils.isEmpty(areaID) || !TextUtils.isEmpty(resultDistrictName) && resultDistrictName.contains(cityNameCn)) {
+                                    areaID = cityIndex.getString(row, DatabaseContracts.AREAID_INDEX);
+                                    resultCityName = cityNameCn;
+                                    cityNameEn = cityIndex.getString(row, DatabaseContracts.NAMEEN_INDEX);
+                                }
+                            }
+                        } else {
+                            DatabaseHelper databaseHelper = new DatabaseHelper(mContext);
+                            SQLiteDatabase sqLiteDatabase = databaseHelper.getReadableDatabase();
+                            Cursor cursor = sqLiteDatabase.query("weathers", DatabaseContracts.PROJECTION,
+                                    "DISTRICTCN like '" + resultCityName + "'", null, null, null, null);
+                            try {
+                                while (cursor.moveToNext()) {
+                                    mSignal.throwIfCanceled();
+                                    String cityNameCn = cursor.getString(DatabaseContracts.NAMECN_INDEX);
+                                    if (TextUtils.isEmpty(areaID) || !TextUtils.isEmpty(resultDistrictName) && resultDistrictName.contains(cityNameCn)) {
+                                        areaID = cursor.getString(DatabaseContracts.AREAID_INDEX);
+                                        resultCityName = cityNameCn;
+                                        cityNameEn = cursor.getString(DatabaseContracts.NAMEEN_INDEX);
+                                    }
+                                }
+                            } finally {
+                                cursor.close();
+                                sqLiteDatabase.close();
                             }
                         }
-                        cursor.close();
-                        sqLiteDatabase.close();
                         if (!TextUtils.isEmpty(areaID)) {
-                            return getWeatherInfo(areaID, MoKeeUtils.isSupportLanguage(false) ? resultCityName : getFormattedNameLetter(cityNameEn), metric);
+                            return getWeatherInfo(areaID, resultCityName, cityNameEn, metric);
                         } else {
                             return null;
                         }
                     } else {
-                        String selection = String.format(Locale.US, URL_PARAM_LATITUDE_LONGITUDE,
-                                mRequest.getRequestInfo().getLocation().getLatitude(),
-                                mRequest.getRequestInfo().getLocation().getLongitude());
-                        return GlobalWeatherProvider.getWeatherInfo(mContext, mRequest, selection);
+                        String selection = GlobalWeatherProvider.selectCoordinates(
+                                mRequestInfo.getLocation().getLatitude(),
+                                mRequestInfo.getLocation().getLongitude());
+                        return GlobalWeatherProvider.getWeatherInfo(mContext, mRequestInfo, selection,
+                                mSignal, mDeadline);
                     }
                 } catch (JSONException e) {
                     e.printStackTrace();
@@ -175,51 +395,28 @@ public class MoKeeWeatherProviderService extends WeatherProviderService {
             return null;
         }
 
-        public WeatherInfo getWeatherInfo(String id, String localizedCityName, boolean metric) {
-            StringBuffer params = new StringBuffer();
+        public WeatherInfo getWeatherInfo(String id, String cityName, String cityNameEn, boolean metric) {
+            StringBuilder params = new StringBuilder(256);
             try {
                 String cityID = RSAUtils.rsaEncryptByPublicKey(id);
                 params.append("city_id=").append(cityID);
             } catch (Exception e) {
                 e.printStackTrace();
             }
-            String forecastResponse = HttpRetriever.retrieve(URL_WEATHER, params.toString());
+            String forecastResponse = HttpRetriever.retrieve(URL_WEATHER, params.toString(), mSignal,
+                    mDeadline.getTimeoutMillis());
             if (forecastResponse != null) {
                 try {
-                    JSONObject weather = new JSONObject(forecastResponse).getJSONArray(MOKEE_API_MAIN_NODE).getJSONObject(0);
-                    JSONObject main = weather.getJSONObject("now");
-                    ArrayList<DayForecast> forecasts = parseForecasts(weather.getJSONArray("daily_forecast"), true);
-                    WeatherInfo.Builder weatherInfo = new WeatherInfo.Builder(localizedCityName,
-                            GlobalWeatherProvider.sanitizeTemperature(main.getDouble("tmp"), metric), metric ? WeatherContract.WeatherColumns.TempUnit.CELSIUS :
-                            WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT);
-                    weatherInfo.setWind(main.getJSONObject("wind").getDouble("spd"), main.getJSONObject("wind").getDouble("deg"), WeatherContract.WeatherColumns.WindSpeedUnit.KPH);
-                    weatherInfo.setHumidity(main.getDouble("hum"));
-                    weatherInfo.setTodaysLow(forecasts.get(0).getLow());
-                    weatherInfo.setTodaysHigh(forecasts.get(0).getHigh());
-                    weatherInfo.setTimestamp(System.currentTimeMillis());
-                    weatherInfo.setWeatherCondition(mapConditionIconToCode(main.getJSONObject("cond").getInt("code")));
-                    if (weather.has("aqi")) {
-                        JSONObject aqiInfo = weather.getJSONObject("aqi").getJSONObject("city");
-                        weatherInfo.setAqi(getAqiLevelName(aqiInfo.getInt("aqi")));
-                    }
-                    if (weather.has("suggestion")) {
-                        JSONObject suggestion = weather.getJSONObject("suggestion");
-                        if (suggestion.has("uv")) {
-                            weatherInfo.setUv(getString(R.string.uv) + " " + suggestion.getJSONObject("uv").getString("brf"));
-                        }
-                    }
-                    weatherInfo.setForecast(forecasts);
-
-                    if (mRequest.getRequestInfo().getRequestType()
-                            == RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ) {
-                        mLastWeatherLocation = mRequest.getRequestInfo().getWeatherLocation();
-                        mLastLocation = null;
-                    } else if (mRequest.getRequestInfo().getRequestType()
-                            == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ) {
-                        mLastLocation = mRequest.getRequestInfo().getLocation();
-                        mLastWeatherLocation = null;
-                    }
-                    return weatherInfo.build();
+                    // The cloud API answers current conditions and forecast in one response,
+                    // so both halves of the cache are refreshed together
+                    MoKeeCloudParser.Result result = MoKeeCloudParser.parseResponse(
+                            forecastResponse, cityName, cityNameEn, mDeadline, mSignal);
+                    String key = LocationKeys.forRequest(mRequestInfo);
+                    WeatherCache.getInstance().put(key, result.conditions, result.forecast);
+                    // Further changes to this city arrive on their own while push is on
+                    if (!TraceRecorder.isReplaying()) mPushClient.ensureSubscribed(key);
+                    return WeatherCache.buildWeatherInfo(mContext, result.conditions,
+                            result.forecast, mRequestInfo.getTemperatureUnit());
                 } catch (JSONException e) {
                     e.printStackTrace();
                 }
@@ -227,158 +424,109 @@ public class MoKeeWeatherProviderService extends WeatherProviderService {
             return null;
         }
 
-        @Override
-        protected WeatherInfo doInBackground(Void... params) {
-            if (mRequest.getRequestInfo().getRequestType()
+        public WeatherInfo run() {
+            TraceRecorder.attach(mTrace);
+            WeatherInfo weatherInfo = null;
+            try {
+                weatherInfo = update();
+            } finally {
+                TraceRecorder.detach();
+                TraceRecorder.get(mContext).finish(mTrace, weatherInfo != null);
+            }
+            return weatherInfo;
+        }
+
+        private WeatherInfo update() {
+            WeatherInfo weatherInfo;
+            try {
+                weatherInfo = fetchWeatherInfo();
+            } catch (OperationCanceledException e) {
+                return null;
+            }
+            TraceRecorder.mark("fetched");
+            if (weatherInfo == null) {
+                weatherInfo = getCachedWeatherInfo();
+            }
+            List<String> dropped = mDeadline.getDroppedFields();
+            if (!dropped.isEmpty()) {
+                ProviderMetrics.event("Completed " + LocationKeys.forRequest(mRequestInfo)
+                        + " without " + TextUtils.join(", ", dropped));
+            }
+            return weatherInfo;
+        }
+
+        // When the upstream fails or is over quota, what's cached still beats failing, rolled
+        // forward to today if it was fetched on an earlier day
+        private WeatherInfo getCachedWeatherInfo() {
+            String key = LocationKeys.forRequest(mRequestInfo);
+            WeatherCache.Conditions conditions = WeatherCache.getInstance().getConditions(key);
+            WeatherCache.Forecast forecast = WeatherCache.getInstance().getForecast(key);
+            if (conditions == null || forecast == null) return null;
+            ProviderMetrics.increment(conditions.derived
+                    ? "fetch_failed_served_derived" : "fetch_failed_served_cache");
+            return WeatherCache.buildWeatherInfo(mContext, conditions, forecast,
+                    mRequestInfo.getTemperatureUnit());
+        }
+
+        private WeatherInfo fetchWeatherInfo() {
+            String key = LocationKeys.forRequest(mRequestInfo);
+            WeatherCache.Conditions conditions = WeatherCache.getInstance().getFreshConditions(key);
+            WeatherCache.Forecast forecast = WeatherCache.getInstance().getFreshForecast(key);
+            if (conditions != null && forecast != null) {
+                ProviderMetrics.increment("weather_cache_hits");
+                return WeatherCache.buildWeatherInfo(mContext, conditions, forecast,
+                        mRequestInfo.getTemperatureUnit());
+            }
+            if (mRequestInfo.getRequestType()
                     == RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ) {
-                String CityId = mRequest.getRequestInfo().getWeatherLocation().getCityId();
-                if (mRequest.getRequestInfo().getWeatherLocation().getCountryId().equals("0086")) {
-                    return getWeatherInfo(CityId, mRequest.getRequestInfo().getWeatherLocation().getCity(), true);
+                String CityId = mRequestInfo.getWeatherLocation().getCityId();
+                if (mRequestInfo.getWeatherLocation().getCountryId().equals("0086")) {
+                    return getWeatherInfo(CityId, mRequestInfo.getWeatherLocation().getCity(), null, true);
                 } else {
-                    String selection = String.format(Locale.US, URL_PARAM_CITY_ID, CityId);
-                    return GlobalWeatherProvider.getWeatherInfo(mContext, mRequest, selection);
+                    String selection = GlobalWeatherProvider.selectCity(CityId);
+                    return GlobalWeatherProvider.getWeatherInfo(mContext, mRequestInfo, selection,
+                            mSignal, mDeadline);
                 }
-            } else if (mRequest.getRequestInfo().getRequestType()
+            } else if (mRequestInfo.getRequestType()
                     == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ) {
-                return getWeatherInfo(mRequest.getRequestInfo().getLocation(), true);
+                return getWeatherInfo(mRequestInfo.getLocation(), true);
             } else {
                 return null;
             }
         }
+    }
 
-        private ArrayList<DayForecast> parseForecasts(JSONArray forecasts, boolean metric)
-                throws JSONException {
-            ArrayList<DayForecast> result = new ArrayList<>();
-            int count = forecasts.length();
+    private class WeatherUpdateRequestTask extends AsyncTask<Void, Void, WeatherInfo> {
+        final WeatherUpdate mUpdate;
+        // Null for replayed requests
+        final ServiceRequest mRequest;
+        public WeatherUpdateRequestTask(RequestInfo requestInfo, ServiceRequest request) {
+            mUpdate = new WeatherUpdate(requestInfo);
+            mRequest = request;
+        }
 
-            if (count == 0) {
-                throw new JSONException("Empty forecasts array");
-            }
-            String firstDayTime = forecasts.getJSONObject(0).getString("date");
-            if (isYesterday(firstDayTime)) {
-                forecasts.remove(0);
-            }
-            for (int i = 0; i < GlobalWeatherProvider.FORECAST_DAYS; i++) {
-                JSONObject forecast = forecasts.getJSONObject(i);
-                int weatherID = forecast.getJSONObject("cond").getInt("code_d");
-                DayForecast item = new DayForecast.Builder(mapConditionIconToCode(weatherID))
-                        .setLow(GlobalWeatherProvider.sanitizeTemperature(forecast.getJSONObject("tmp").getDouble("min"), metric))
-                        .setHigh(GlobalWeatherProvider.sanitizeTemperature(forecast.getJSONObject("tmp").getDouble("max"), metric)).build();
-                result.add(item);
-            }
-            return result;
-        }
-
-        private int mapConditionIconToCode(int conditionId) {
-            switch (conditionId) {
-                case 100: //晴
-                    return WeatherContract.WeatherColumns.WeatherCode.SUNNY;
-                case 101: //多云
-                    return WeatherContract.WeatherColumns.WeatherCode.CLOUDY;
-                case 102: //少云
-                    return WeatherContract.WeatherColumns.WeatherCode.FEW_CLOUDS;
-                case 103: //晴间多云
-                    return WeatherContract.WeatherColumns.WeatherCode.PARTLY_CLOUDY;
-                case 104: //阴
-                    return WeatherContract.WeatherColumns.WeatherCode.OVERCAST;
-                case 200: //有风
-                    return WeatherContract.WeatherColumns.WeatherCode.WINDY;
-                case 201: //平静
-                    return WeatherContract.WeatherColumns.WeatherCode.CALM;
-                case 202: //微风
-                    return WeatherContract.WeatherColumns.WeatherCode.LIGHT_BREEZE;
-                case 203: //和风
-                    return WeatherContract.WeatherColumns.WeatherCode.MODERATE_BREEZE;
-                case 204: //清风
-                    return WeatherContract.WeatherColumns.WeatherCode.FRESH_BREEZE;
-                case 205: //强风/劲风
-                    return WeatherContract.WeatherColumns.WeatherCode.STRONG_BREEZE;
-                case 206: //疾风
-                    return WeatherContract.WeatherColumns.WeatherCode.HIGH_WIND;
-                case 207: //大风
-                    return WeatherContract.WeatherColumns.WeatherCode.GALE;
-                case 208: //烈风
-                    return WeatherContract.WeatherColumns.WeatherCode.STRONG_GALE;
-                case 209: //风暴
-                    return WeatherContract.WeatherColumns.WeatherCode.STORM;
-                case 210: //狂爆风
-                    return WeatherContract.WeatherColumns.WeatherCode.VIOLENT_STORM;
-                case 211: //飓风
-                    return WeatherContract.WeatherColumns.WeatherCode.HURRICANE;
-                case 212: //龙卷风
-                    return WeatherContract.WeatherColumns.WeatherCode.TORNADO;
-                case 213: //热带风暴
-                    return WeatherContract.WeatherColumns.WeatherCode.TROPICAL_STORM;
-                case 300: //阵雨
-                    return WeatherContract.WeatherColumns.WeatherCode.SHOWER_RAIN;
-                case 301: //强阵雨
-                    return WeatherContract.WeatherColumns.WeatherCode.HEAVY_SHOWER_RAIN;
-                case 302: //雷阵雨
-                    return WeatherContract.WeatherColumns.WeatherCode.THUNDERSHOWER;
-                case 303: //强雷阵雨
-                    return WeatherContract.WeatherColumns.WeatherCode.HEAVY_THUNDERSTORM;
-                case 304: //雷阵雨伴有冰雹
-                    return WeatherContract.WeatherColumns.WeatherCode.HAIL;
-                case 305: //小雨
-                    return WeatherContract.WeatherColumns.WeatherCode.LIGHT_RAIN;
-                case 306: //中雨
-                    return WeatherContract.WeatherColumns.WeatherCode.MODERATE_RAIN;
-                case 307: //大雨
-                    return WeatherContract.WeatherColumns.WeatherCode.HEAVY_RAIN;
-                case 308: //极端降雨
-                    return WeatherContract.WeatherColumns.WeatherCode.EXTREME_RAIN;
-                case 309: //毛毛雨/细雨
-                    return WeatherContract.WeatherColumns.WeatherCode.DRIZZLE_RAIN;
-                case 310: //暴雨
-                    return WeatherContract.WeatherColumns.WeatherCode.RAIN_STORM;
-                case 311: //大暴雨
-                    return WeatherContract.WeatherColumns.WeatherCode.HEAVY_RAIN_STORM;
-                case 312: //特大暴雨
-                    return WeatherContract.WeatherColumns.WeatherCode.SEVERE_RAIN_STORM;
-                case 313: //冻雨
-                    return WeatherContract.WeatherColumns.WeatherCode.FREEZING_RAIN;
-                case 400: //小雪
-                    return WeatherContract.WeatherColumns.WeatherCode.LIGHT_SNOW;
-                case 401: //中雪
-                    return WeatherContract.WeatherColumns.WeatherCode.MODERATE_SNOW;
-                case 402: //大雪
-                    return WeatherContract.WeatherColumns.WeatherCode.HEAVY_SNOW;
-                case 403: //暴雪
-                    return WeatherContract.WeatherColumns.WeatherCode.SNOWSTORM;
-                case 404: //雨夹雪
-                    return WeatherContract.WeatherColumns.WeatherCode.SLEET;
-                case 405: //雨雪天气
-                    return WeatherContract.WeatherColumns.WeatherCode.RAIN_WITH_SNOW;
-                case 406: //阵雨夹雪
-                    return WeatherContract.WeatherColumns.WeatherCode.SHOWER_SNOW;
-                case 407: //阵雪
-                    return WeatherContract.WeatherColumns.WeatherCode.SNOW_FLURRY;
-                case 500: //薄雾
-                    return WeatherContract.WeatherColumns.WeatherCode.MIST;
-                case 501: //雾
-                    return WeatherContract.WeatherColumns.WeatherCode.FOGGY;
-                case 502: //霾
-                    return WeatherContract.WeatherColumns.WeatherCode.HAZE;
-                case 503: //扬沙
-                    return WeatherContract.WeatherColumns.WeatherCode.SAND;
-                case 504: //浮尘
-                    return WeatherContract.WeatherColumns.WeatherCode.DUST;
-                case 506: //火山灰
-                    return WeatherContract.WeatherColumns.WeatherCode.VOLCANIC_ASH;
-                case 507: //沙尘暴
-                    return WeatherContract.WeatherColumns.WeatherCode.DUSTSTORM;
-                case 508: //强沙尘暴
-                    return WeatherContract.WeatherColumns.WeatherCode.SANDSTORM;
-                case 900: //热
-                    return WeatherContract.WeatherColumns.WeatherCode.HOT;
-                case 901: //冷
-                    return WeatherContract.WeatherColumns.WeatherCode.COLD;
-            }
-            return WeatherContract.WeatherColumns.WeatherCode.NOT_AVAILABLE;
+        WeatherUpdateRequestTask(RequestInfo requestInfo, ServiceRequest request,
+                TraceRecorder.Trace trace) {
+            mUpdate = new WeatherUpdate(requestInfo, trace);
+            mRequest = request;
+        }
+
+        @Override
+        protected WeatherInfo doInBackground(Void... params) {
+            if (mRequest != null) mRequestRegistry.markStarted(mRequest, this);
+            return mUpdate.run();
+        }
+
+        @Override
+        protected void onCancelled(WeatherInfo weatherInfo) {
+            if (mRequest == null) return;
+            mRequestRegistry.finish(mRequest, this);
         }
 
         @Override
         protected void onPostExecute(WeatherInfo weatherInfo) {
+            if (mRequest == null) return;
+            mRequestRegistry.finish(mRequest, this);
             if (weatherInfo == null) {
                 if (DEBUG) Log.d(TAG, "Received null weather info, failing request");
                 mRequest.fail();
@@ -390,40 +538,56 @@ public class MoKeeWeatherProviderService extends WeatherProviderService {
         }
     }
 
-    private boolean isSameWeatherLocation(WeatherLocation newLocation,
-            WeatherLocation oldLocation) {
-        if (newLocation == null || oldLocation == null) return false;
-        return (newLocation.getCityId().equals(oldLocation.getCityId())
-                && newLocation.getCity().equals(oldLocation.getCity())
-                && newLocation.getPostalCode().equals(oldLocation.getPostalCode())
-                && newLocation.getCountry().equals(oldLocation.getCountry())
-                && newLocation.getCountryId().equals(oldLocation.getCountryId()));
-    }
-
-    private boolean isSameGeoLocation(Location newLocation, Location oldLocation) {
-        if (newLocation == null || oldLocation == null) return false;
-        float distance = newLocation.distanceTo(oldLocation);
-        if (DEBUG) Log.d(TAG, "Distance between locations " + distance);
-        return (distance < LOCATION_DISTANCE_METERS_THRESHOLD);
-    }
-
     private class LookupCityNameRequestTask
             extends AsyncTask<Void, Void, ArrayList<WeatherLocation>> {
 
+        final RequestInfo mRequestInfo;
+        // Null for replayed lookups
         final ServiceRequest mRequest;
+        final String mSearchText;
+        final CancellationSignal mSignal = new CancellationSignal();
+        final TraceRecorder.Trace mTrace;
         public LookupCityNameRequestTask(ServiceRequest request) {
+            this(request.getRequestInfo(), request,
+                    TraceRecorder.get(mContext).begin(request.getRequestInfo()));
+        }
+
+        LookupCityNameRequestTask(RequestInfo requestInfo, ServiceRequest request,
+                TraceRecorder.Trace trace) {
+            mRequestInfo = requestInfo;
             mRequest = request;
+            mTrace = trace;
+            mSearchText = getFormattedName(LookupSession.normalize(requestInfo.getCityName()));
         }
 
         @Override
         protected ArrayList<WeatherLocation> doInBackground(Void... params) {
-            ArrayList<WeatherLocation> locations = getLocations(
-                    mRequest.getRequestInfo().getCityName());
+            if (mRequest != null) mRequestRegistry.markStarted(mRequest, this);
+            TraceRecorder.attach(mTrace);
+            ArrayList<WeatherLocation> locations = null;
+            try {
+                locations = getLocations(mRequestInfo.getCityName());
+            } catch (OperationCanceledException e) {
+                // Superseded or cancelled by the client
+            } finally {
+                TraceRecorder.detach();
+                TraceRecorder.get(mContext).finish(mTrace, locations != null);
+            }
             return locations;
         }
 
+        @Override
+        protected void onCancelled(ArrayList<WeatherLocation> locations) {
+            if (mRequest == null) return;
+            mRequestRegistry.finish(mRequest, this);
+            mLookupSession.finish(mRequest);
+        }
+
         @Override
         protected void onPostExecute(ArrayList<WeatherLocation> locations) {
+            if (mRequest == null) return;
+            mRequestRegistry.finish(mRequest, this);
+            mLookupSession.finish(mRequest);
             if (locations != null) {
                 if (DEBUG) {
                     for (WeatherLocation location : locations) {
@@ -437,35 +601,140 @@ public class MoKeeWeatherProviderService extends WeatherProviderService {
             }
         }
 
-        private ArrayList<WeatherLocation> getLocations(String input) {
-            String searchText = getFormattedName(input.toLowerCase());
-            ArrayList<WeatherLocation> results = new ArrayList<>();
+        // The remote search starts next to the local one so its debounce overlaps the table
+        // scan, but only goes out once the local search found nothing. Results can't be
+        // streamed, ServiceRequest.complete() can only be called once, so local matches are
+        // answered right away without spending a remote search on them.
+        private ArrayList<WeatherLocation> getLocations(final String input) {
+            final CancellationSignal remoteSignal = new CancellationSignal();
+            final CountDownLatch localDone = new CountDownLatch(1);
+            FutureTask<ArrayList<WeatherLocation>> remote = new FutureTask<>(
+                    new Callable<ArrayList<WeatherLocation>>() {
+                @Override
+                public ArrayList<WeatherLocation> call() throws InterruptedException {
+                    TraceRecorder.attach(mTrace);
+                    try {
+                        // Typing may not be done yet, don't spend a remote search on a partial
+                        // name
+                        mLookupSession.awaitQuiet(remoteSignal);
+                        localDone.await();
+                        remoteSignal.throwIfCanceled();
+                        return GlobalWeatherProvider.getLocations(mContext, input, remoteSignal);
+                    } finally {
+                        TraceRecorder.detach();
+                    }
+                }
+            });
+            mSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    remoteSignal.cancel();
+                }
+            });
+            try {
+                REMOTE_LOOKUP_EXECUTOR.execute(remote);
+            } catch (RejectedExecutionException e) {
+                // Enough remote searches are running, this one makes do with local matches
+                ProviderMetrics.increment("lookup_remote_rejected");
+                remote = null;
+            }
+            long start = SystemClock.elapsedRealtime();
+
+            try {
+                // A replay has no session of its own, it searches from scratch
+                boolean replay = TraceRecorder.isReplaying();
+                ArrayList<WeatherLocation> results = replay
+                        ? null : mLookupSession.recall(mSearchText);
+                if (results == null) {
+                    CityIndex cityIndex = CityIndex.get(mContext);
+                    results = cityIndex != null
+                            ? findLocations(cityIndex, mSearchText) : findLocations(mSearchText);
+                }
+                if (!replay) mLookupSession.remember(mSearchText, results);
+                TraceRecorder.mark("local");
 
+                if (!results.isEmpty()) {
+                    remoteSignal.cancel();
+                    ProviderMetrics.increment("lookup_remote_skipped");
+                    return results;
+                }
+                localDone.countDown();
+                return awaitRemote(remote, RequestDeadline.DEFAULT_BUDGET
+                        - (SystemClock.elapsedRealtime() - start));
+            } finally {
+                mSignal.setOnCancelListener(null);
+                remoteSignal.cancel();
+                localDone.countDown();
+            }
+        }
+
+        private ArrayList<WeatherLocation> awaitRemote(
+                FutureTask<ArrayList<WeatherLocation>> remote, long timeoutMillis) {
+            if (remote == null) return null;
+            try {
+                return remote.get(Math.max(0, timeoutMillis), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                ProviderMetrics.increment("lookup_remote_late");
+            } catch (InterruptedException e) {
+                // Cancelling the task interrupts it, leave that for the rest of it to see
+                Thread.currentThread().interrupt();
+                mSignal.throwIfCanceled();
+            } catch (ExecutionException e) {
+                // Superseded while waiting for typing to pause, or the search failed
+            }
+            return null;
+        }
+
+        private ArrayList<WeatherLocation> findLocations(CityIndex cityIndex,
+                String searchText) {
+            int[] rows = CityIndex.union(
+                    cityIndex.findEquals(DatabaseContracts.DISTRICTEN_INDEX, searchText),
+                    cityIndex.findEquals(DatabaseContracts.NAMEEN_INDEX, searchText),
+                    cityIndex.findContainedIn(DatabaseContracts.DISTRICTCN_INDEX, searchText),
+                    cityIndex.findContainedIn(DatabaseContracts.NAMECN_INDEX, searchText));
+            ArrayList<WeatherLocation> locations = new ArrayList<>(rows.length);
+            for (int row : rows) {
+                mSignal.throwIfCanceled();
+                String nameCN = cityIndex.getString(row, DatabaseContracts.NAMECN_INDEX);
+                String nameEN = cityIndex.getString(row, DatabaseContracts.NAMEEN_INDEX);
+                WeatherLocation weatherLocation = new WeatherLocation.Builder(
+                        cityIndex.getString(row, DatabaseContracts.AREAID_INDEX),
+                        WeatherLabels.getCityName(nameCN, nameEN))
+                        .setCountry(cityIndex.getString(row, DatabaseContracts.NATIONCN_INDEX))
+                        .setCountryId("0086").build();
+                locations.add(weatherLocation);
+            }
+            return locations;
+        }
+
+        private ArrayList<WeatherLocation> findLocations(String searchText) {
+            ArrayList<WeatherLocation> locations = new ArrayList<>();
             DatabaseHelper databaseHelper = new DatabaseHelper(mContext);
             SQLiteDatabase sqLiteDatabase = databaseHelper.getReadableDatabase();
             Cursor cursor = sqLiteDatabase.query("weathers", DatabaseContracts.PROJECTION, null, null, null, null, null);
 
-            while (cursor.moveToNext()) {
-                String areaID = cursor.getString(DatabaseContracts.AREAID_INDEX);
-                String nameCN = cursor.getString(DatabaseContracts.NAMECN_INDEX);
-                String nameEN = cursor.getString(DatabaseContracts.NAMEEN_INDEX);
-                String districtEN = cursor.getString(DatabaseContracts.DISTRICTEN_INDEX);
-                String districtCN = cursor.getString(DatabaseContracts.DISTRICTCN_INDEX);
-                String nationCN = cursor.getString(DatabaseContracts.NATIONCN_INDEX);
-                String countryID = "0086";
-
-                if (searchText.equals(districtEN) || searchText.equals(nameEN) || searchText.contains(districtCN) || searchText.contains(nameCN)) {
-                    WeatherLocation weatherLocation = new WeatherLocation.Builder(areaID, MoKeeUtils.isSupportLanguage(false) ? nameCN : getFormattedNameLetter(nameEN))
-                            .setCountry(nationCN).setCountryId(countryID).build();
-                    results.add(weatherLocation);
+            try {
+                while (cursor.moveToNext()) {
+                    mSignal.throwIfCanceled();
+                    String areaID = cursor.getString(DatabaseContracts.AREAID_INDEX);
+                    String nameCN = cursor.getString(DatabaseContracts.NAMECN_INDEX);
+                    String nameEN = cursor.getString(DatabaseContracts.NAMEEN_INDEX);
+                    String districtEN = cursor.getString(DatabaseContracts.DISTRICTEN_INDEX);
+                    String districtCN = cursor.getString(DatabaseContracts.DISTRICTCN_INDEX);
+                    String nationCN = cursor.getString(DatabaseContracts.NATIONCN_INDEX);
+                    String countryID = "0086";
+
+                    if (searchText.equals(districtEN) || searchText.equals(nameEN) || searchText.contains(districtCN) || searchText.contains(nameCN)) {
+                        WeatherLocation weatherLocation = new WeatherLocation.Builder(areaID, WeatherLabels.getCityName(nameCN, nameEN))
+                                .setCountry(nationCN).setCountryId(countryID).build();
+                        locations.add(weatherLocation);
+                    }
                 }
+            } finally {
+                cursor.close();
+                sqLiteDatabase.close();
             }
-            cursor.close();
-            sqLiteDatabase.close();
-            if (results.size() == 0) {
-                return GlobalWeatherProvider.getLocations(mContext, input);
-            }
-            return results;
+            return locations;
         }
     }
 
@@ -474,20 +743,8 @@ public class MoKeeWeatherProviderService extends WeatherProviderService {
         switch (request.getRequestInfo().getRequestType()) {
             case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
             case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ:
-                synchronized (mWeatherUpdateRequestMap) {
-                    WeatherUpdateRequestTask task = mWeatherUpdateRequestMap.remove(request);
-                    if (task != null) {
-                        task.cancel(true);
-                    }
-                    return;
-                }
             case RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ:
-                synchronized (mLookupCityRequestMap) {
-                    LookupCityNameRequestTask task = mLookupCityRequestMap.remove(request);
-                    if (task != null) {
-                        task.cancel(true);
-                    }
-                }
+                mRequestRegistry.cancel(request);
                 return;
             default:
                 if (DEBUG) Log.w(TAG, "Received unknown request type "
@@ -496,30 +753,64 @@ public class MoKeeWeatherProviderService extends WeatherProviderService {
         }
     }
 
-    private boolean isYesterday (String firstDayTime) throws JSONException {
-        Date date = new Date(new Date().getTime() - 24 * 60 * 60 * 1000);
-        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
-        String yesterDayTime = format.format(date);
-        return (firstDayTime.equals(yesterDayTime));
+    /**
+     * Runs recorded traces through the request tasks again, see TraceRecorder. Requests are
+     * submitted with the gaps they were received with, long idle periods shortened to
+     * MAX_REPLAY_GAP. Results are listed in the dump. Tasks are started on the main thread,
+     * as AsyncTask requires.
+     */
+    private void replayTraces(final List<TraceRecorder.Trace> traces) {
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long previous = -1;
+                for (final TraceRecorder.Trace trace : traces) {
+                    long time = trace.getRecordedTime();
+                    if (previous >= 0) {
+                        SystemClock.sleep(Math.max(0, Math.min(time - previous, MAX_REPLAY_GAP)));
+                    }
+                    previous = time;
+                    final RequestInfo requestInfo;
+                    try {
+                        requestInfo = trace.toRequestInfo();
+                    } catch (JSONException e) {
+                        continue;
+                    }
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (requestInfo.getRequestType()
+                                    == RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ) {
+                                execute(new LookupCityNameRequestTask(requestInfo, null, trace));
+                            } else {
+                                execute(new WeatherUpdateRequestTask(requestInfo, null, trace));
+                            }
+                        }
+                    });
+                }
+            }
+        }, "TraceReplay").start();
     }
 
-    private String getAqiLevelName(int aqi) {
-        StringBuilder stringBuilder = new StringBuilder();
-        stringBuilder.append(getString(R.string.aqi)).append(" ").append(aqi).append(" ");
-        if (aqi <= 50) {
-            stringBuilder.append(getString(R.string.aqi_level_1));
-        } else if (aqi >= 51 && aqi <= 100) {
-            stringBuilder.append(getString(R.string.aqi_level_2));
-        } else if (aqi >= 101 && aqi <= 150) {
-            stringBuilder.append(getString(R.string.aqi_level_3));
-        } else if (aqi >= 151 && aqi <= 200) {
-            stringBuilder.append(getString(R.string.aqi_level_4));
-        } else if (aqi >= 201 && aqi <= 300) {
-            stringBuilder.append(getString(R.string.aqi_level_5));
-        } else {
-            stringBuilder.append(getString(R.string.aqi_level_6));
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (args != null && args.length > 0 && "replay".equals(args[0])) {
+            List<TraceRecorder.Trace> traces = TraceRecorder.get(mContext).load();
+            pw.println("Replaying " + traces.size() + " traces");
+            replayTraces(traces);
+            return;
         }
-        return stringBuilder.toString();
+        ProviderMetrics.dump(pw);
+        mRequestRegistry.dump(pw);
+        pw.println("Held refreshes: " + mFetchPolicy.getPendingCount());
+        WeatherCache.getInstance().dump(pw);
+        RequestRateLimiter.get(mContext).dump(pw);
+        mPushClient.dump(pw);
+        EndpointSelector.get(mContext).dump(pw);
+        HostResolver.getInstance().dump(pw);
+        Bulkhead.dump(pw);
+        TraceRecorder.get(mContext).dump(pw);
     }
 
     private String getFormattedName(String cityName) {
@@ -531,8 +822,4 @@ public class MoKeeWeatherProviderService extends WeatherProviderService {
             return cityName;
         }
     }
-
-    private String getFormattedNameLetter(String cityName) {
-        return cityName.replaceFirst(cityName.substring(0, 1), cityName.substring(0, 1).toUpperCase());
-    }
 }
\ No newline at end of file
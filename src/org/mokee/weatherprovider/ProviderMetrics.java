@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide counters and a short log of notable events, printed by the service dump.
+ */
+public class ProviderMetrics {
+
+    private static final int MAX_EVENTS = 32;
+
+    private static final ConcurrentHashMap<String, AtomicLong> sCounters =
+            new ConcurrentHashMap<>();
+    private static final String[] sEvents = new String[MAX_EVENTS];
+    private static int sNextEvent;
+    // Guarded by sEvents like the log itself
+    private static final SimpleDateFormat sEventTimeFormat =
+            new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US);
+    private static final Date sEventTime = new Date();
+
+    public static void increment(String counter) {
+        add(counter, 1);
+    }
+
+    public static void add(String counter, long delta) {
+        AtomicLong value = sCounters.get(counter);
+        if (value == null) {
+            AtomicLong created = new AtomicLong();
+            value = sCounters.putIfAbsent(counter, created);
+            if (value == null) value = created;
+        }
+        value.addAndGet(delta);
+    }
+
+    public static long get(String counter) {
+        AtomicLong value = sCounters.get(counter);
+        return value != null ? value.get() : 0;
+    }
+
+    public static void event(String message) {
+        synchronized (sEvents) {
+            sEventTime.setTime(System.currentTimeMillis());
+            sEvents[sNextEvent] = sEventTimeFormat.format(sEventTime) + " " + message;
+            sNextEvent = (sNextEvent + 1) % MAX_EVENTS;
+        }
+    }
+
+    public static void dump(PrintWriter pw) {
+        pw.println("Counters:");
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(sCounters).entrySet()) {
+            pw.println("  " + entry.getKey() + ": " + entry.getValue().get());
+        }
+        pw.println("Recent events:");
+        synchronized (sEvents) {
+            for (int i = 0; i < MAX_EVENTS; i++) {
+                String entry = sEvents[(sNextEvent + i) % MAX_EVENTS];
+                if (entry != null) pw.println("  " + entry);
+            }
+        }
+    }
+}
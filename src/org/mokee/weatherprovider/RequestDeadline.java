@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Time budget of a request, started when it is submitted. Core data (temperature, condition,
+ * forecast) is always waited for; optional stages such as UV and AQI are skipped once the
+ * budget runs low, and the request completes without them.
+ */
+public class RequestDeadline {
+
+    private static final String TAG = RequestDeadline.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final long DEFAULT_BUDGET = 15L * 1000L;
+    // Least time an optional stage needs to be worth starting
+    private static final long OPTIONAL_STAGE_MIN = 2L * 1000L;
+
+    public static final String FIELD_UV = "uv";
+    public static final String FIELD_AQI = "aqi";
+
+    private final long mDeadline;
+    private final List<String> mDropped = new ArrayList<>();
+
+    public RequestDeadline(long budgetMillis) {
+        mDeadline = SystemClock.elapsedRealtime() + budgetMillis;
+    }
+
+    public long getRemainingMillis() {
+        return Math.max(0, mDeadline - SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Timeout for a blocking upstream call, never 0 since that would mean no timeout.
+     */
+    public int getTimeoutMillis() {
+        return (int) Math.max(1, getRemainingMillis());
+    }
+
+    /**
+     * Returns whether an optional stage producing field should still run. If not, the field
+     * is recorded as dropped.
+     */
+    public boolean allowOptional(String field) {
+        if (getRemainingMillis() >= OPTIONAL_STAGE_MIN) return true;
+        drop(field);
+        return false;
+    }
+
+    /**
+     * Records that field is missing from the result because its stage ran out of time.
+     */
+    public synchronized void drop(String field) {
+        if (DEBUG) Log.d(TAG, "Deadline near, completing without " + field);
+        mDropped.add(field);
+        ProviderMetrics.increment("deadline_dropped_" + field);
+    }
+
+    public synchronized List<String> getDroppedFields() {
+        return new ArrayList<>(mDropped);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Throttles upstream traffic on two levels: a minimum interval between weather requests for
+ * the same location, and a token bucket per upstream API key so the provider as a whole stays
+ * within the quota of that key. All state is persisted, so restarting the process does not
+ * reset it.
+ */
+public class RequestRateLimiter {
+
+    private static final String TAG = RequestRateLimiter.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final String PREFS_NAME = "rate_limiter";
+    private static final String PREF_LOCATION_PREFIX = "location:";
+    private static final String PREF_TOKENS_SUFFIX = ":tokens";
+    private static final String PREF_REFILL_SUFFIX = ":refill";
+
+    //MoKeeWeather recommends to wait 10 min between requests
+    public static final long LOCATION_INTERVAL = 1000L * 60L * 10L;
+
+    public static final String THROTTLED_LOCATION = "throttled_location";
+    public static final String THROTTLED_QUOTA = "throttled_quota";
+
+    /**
+     * An upstream API key and the quota that comes with it.
+     */
+    public static class Bucket {
+        final String mName;
+        final int mCapacity;
+        final long mRefillIntervalMillis;
+
+        public Bucket(String name, String apiKey, int capacity, long periodMillis) {
+            // Never persist the key itself, a changed key simply starts a new bucket
+            mName = name + ":" + Integer.toHexString(apiKey != null ? apiKey.hashCode() : 0);
+            mCapacity = capacity;
+            mRefillIntervalMillis = periodMillis / capacity;
+        }
+    }
+
+    private static RequestRateLimiter sInstance;
+
+    private final SharedPreferences mPrefs;
+    private final Map<String, Long> mLocationTimestamps = new HashMap<>();
+
+    private RequestRateLimiter(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        long now = System.currentTimeMillis();
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            if (!entry.getKey().startsWith(PREF_LOCATION_PREFIX)) continue;
+            long timestamp = (Long) entry.getValue();
+            if (timestamp + LOCATION_INTERVAL > now && timestamp <= now) {
+                mLocationTimestamps.put(
+                        entry.getKey().substring(PREF_LOCATION_PREFIX.length()), timestamp);
+            } else {
+                editor.remove(entry.getKey());
+            }
+        }
+        editor.apply();
+    }
+
+    public static synchronized RequestRateLimiter get(Context context) {
+        if (sInstance == null) {
+            sInstance = new RequestRateLimiter(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Records a request for the location identified by key, unless one was accepted less than
+     * intervalMillis ago, in which case the request is reported as throttled. Locations whose
+     * weather is changing fast get a shorter interval, intervals above LOCATION_INTERVAL are
+     * capped to it.
+     */
+    public synchronized boolean tryAcquireLocation(String key, long intervalMillis) {
+        if (key == null) return true;
+        long interval = Math.min(intervalMillis, LOCATION_INTERVAL);
+        long now = System.currentTimeMillis();
+        Long last = mLocationTimestamps.get(key);
+        // A timestamp in the future means the wall clock went backwards, don't trust it
+        if (last != null && last + interval > now && last <= now) {
+            throttled(THROTTLED_LOCATION, key + " requested " + (now - last) / 1000 + "s ago");
+            return false;
+        }
+        mLocationTimestamps.put(key, now);
+        SharedPreferences.Editor editor = mPrefs.edit();
+        editor.putLong(PREF_LOCATION_PREFIX + key, now);
+        Iterator<Map.Entry<String, Long>> iterator = mLocationTimestamps.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (entry.getValue() + LOCATION_INTERVAL <= now) {
+                editor.remove(PREF_LOCATION_PREFIX + entry.getKey());
+                iterator.remove();
+            }
+        }
+        editor.apply();
+        return true;
+    }
+
+    /**
+     * Takes one token from the bucket of an upstream API key. Returns false, and reports the
+     * call as throttled, if the quota of that key is exhausted.
+     */
+    public synchronized boolean tryAcquire(Bucket bucket) {
+        // Replays never reach the upstream
+        if (TraceRecorder.isReplaying()) return true;
+        long now = System.currentTimeMillis();
+        String tokensKey = bucket.mName + PREF_TOKENS_SUFFIX;
+        String refillKey = bucket.mName + PREF_REFILL_SUFFIX;
+        int tokens = mPrefs.getInt(tokensKey, bucket.mCapacity);
+        long lastRefill = mPrefs.getLong(refillKey, now);
+        if (lastRefill > now) lastRefill = now;
+
+        long refills = (now - lastRefill) / bucket.mRefillIntervalMillis;
+        if (refills > 0) {
+            tokens = (int) Math.min(bucket.mCapacity, tokens + refills);
+            lastRefill = tokens == bucket.mCapacity
+                    ? now : lastRefill + refills * bucket.mRefillIntervalMillis;
+        }
+
+        boolean acquired = tokens > 0;
+        if (acquired) {
+            tokens--;
+        } else {
+            throttled(THROTTLED_QUOTA, bucket.mName + " quota exhausted");
+        }
+        mPrefs.edit().putInt(tokensKey, tokens).putLong(refillKey, lastRefill).apply();
+        return acquired;
+    }
+
+    private void throttled(String reason, String detail) {
+        if (DEBUG) Log.d(TAG, "Throttled: " + reason + " " + detail);
+        ProviderMetrics.increment(reason);
+        ProviderMetrics.event(reason + " " + detail);
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Rate limiter:");
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> entry : mLocationTimestamps.entrySet()) {
+            pw.println("  " + entry.getKey() + " last request "
+                    + (now - entry.getValue()) / 1000 + "s ago");
+        }
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            if (entry.getKey().endsWith(PREF_TOKENS_SUFFIX)) {
+                pw.println("  " + entry.getKey() + ": " + entry.getValue());
+            }
+        }
+    }
+}
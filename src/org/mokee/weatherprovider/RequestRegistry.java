@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.os.AsyncTask;
+import android.os.CancellationSignal;
+
+import java.io.PrintWriter;
+import java.util.concurrent.ConcurrentHashMap;
+
+import mokee.weatherservice.ServiceRequest;
+
+/**
+ * Tracks the task serving each in-flight request. Entries are dropped as soon as their request
+ * completes, fails or is cancelled, so nothing outlives the request it belongs to.
+ */
+public class RequestRegistry {
+
+    private static class Entry {
+        final AsyncTask<?, ?, ?> task;
+        final CancellationSignal signal;
+        // Set once a worker picks the task up, queued tasks report RUNNING too
+        volatile boolean started;
+
+        Entry(AsyncTask<?, ?, ?> task, CancellationSignal signal) {
+            this.task = task;
+            this.signal = signal;
+        }
+    }
+
+    private final ConcurrentHashMap<ServiceRequest, Entry> mTasks = new ConcurrentHashMap<>();
+
+    /**
+     * Registers the task serving request. Cancelling the request cancels signal, which aborts
+     * whatever connection or scan the task is blocked in.
+     */
+    public void register(ServiceRequest request, AsyncTask<?, ?, ?> task,
+            CancellationSignal signal) {
+        mTasks.put(request, new Entry(task, signal));
+    }
+
+    /**
+     * Notes that a worker started running the task serving request.
+     */
+    public void markStarted(ServiceRequest request, AsyncTask<?, ?, ?> task) {
+        Entry entry = mTasks.get(request);
+        if (entry != null && entry.task == task) {
+            entry.started = true;
+        }
+    }
+
+    /**
+     * Forgets a request once its task is done with it, whatever the outcome.
+     */
+    public void finish(ServiceRequest request, AsyncTask<?, ?, ?> task) {
+        Entry entry = mTasks.get(request);
+        if (entry != null && entry.task == task) {
+            mTasks.remove(request, entry);
+        }
+    }
+
+    /**
+     * Cancels and forgets the task serving request. Returns false if the request already
+     * finished.
+     */
+    public boolean cancel(ServiceRequest request) {
+        Entry entry = mTasks.remove(request);
+        if (entry == null) return false;
+        entry.signal.cancel();
+        entry.task.cancel(true);
+        ProviderMetrics.increment("cancelled_requests");
+        if (entry.started) {
+            // The worker unblocks right away instead of waiting on the upstream
+            ProviderMetrics.increment("cancel_freed_workers");
+        }
+        return true;
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("Requests in flight: " + mTasks.size());
+    }
+}
@@ -42,5 +42,26 @@ public class SettingsActivity extends Activity {
             copyright.setSummary(getString(R.string.prefscreen_copyright_summary,
                     getString(R.string.mokeeweather_inc_name)));
         }
+
+        @Override
+        public void onResume() {
+            super.onResume();
+            updateMirrorSummaries();
+        }
+
+        // Shows which endpoint each upstream is using, as of the last request
+        private void updateMirrorSummaries() {
+            EndpointSelector selector = EndpointSelector.get(getActivity());
+            for (EndpointSelector.Upstream upstream : selector.getUpstreams()) {
+                Preference mirrors = findPreference(
+                        EndpointSelector.PREF_MIRRORS_PREFIX + upstream.name);
+                if (mirrors == null) continue;
+                EndpointSelector.Endpoint selected = selector.getSelected(upstream);
+                mirrors.setSummary(selected == null || !selected.isMeasured()
+                        ? getString(R.string.prefscreen_mirrors_not_measured)
+                        : getString(R.string.prefscreen_mirrors_summary, selected.baseUrl,
+                                selected.getRttMillis(), selected.getSuccessPercent()));
+            }
+        }
     }
 }
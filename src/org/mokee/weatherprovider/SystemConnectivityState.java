@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+
+/**
+ * FetchPolicy.ConnectivityState backed by ConnectivityManager.
+ */
+public class SystemConnectivityState implements FetchPolicy.ConnectivityState {
+
+    private final ConnectivityManager mConnectivityManager;
+
+    public SystemConnectivityState(Context context) {
+        mConnectivityManager = (ConnectivityManager) context.getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+    }
+
+    @Override
+    public boolean isConnected() {
+        NetworkInfo info = mConnectivityManager.getActiveNetworkInfo();
+        return info != null && info.isConnected();
+    }
+
+    @Override
+    public boolean isMetered() {
+        return mConnectivityManager.isActiveNetworkMetered();
+    }
+
+    @Override
+    public boolean isCaptivePortal() {
+        Network network = mConnectivityManager.getActiveNetwork();
+        if (network == null) return false;
+        NetworkCapabilities capabilities = mConnectivityManager.getNetworkCapabilities(network);
+        // Not being validated (yet) is no reason to stay off a network, only a known portal is
+        return capabilities != null && capabilities.hasCapability(
+                NetworkCapabilities.NET_CAPABILITY_CAPTIVE_PORTAL);
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.content.Context;
+import android.location.Location;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+import mokee.weather.RequestInfo;
+import mokee.weather.WeatherLocation;
+
+/**
+ * Opt-in record of what requests the provider served and what the upstreams answered, for
+ * reproducing latency and parse problems offline. Recording is enabled with
+ *
+ * <pre>
+ * setprop persist.mk.weather.trace 1
+ * </pre>
+ *
+ * A trace holds what replaying the request needs, which does tell what places were asked
+ * about:
+ *
+ * - when it arrived, its type and temperature unit
+ * - for a weather request by city, the city and country IDs, but not their names
+ * - for a weather request by location, the coordinates rounded to a GEO_CELL_DEGREES cell
+ * - for a city lookup, the text looked up as the user typed it
+ * - for every upstream response, the URL path, when it started, how long it took and the
+ *   body up to MAX_BODY_LENGTH, which names the city and has its coordinates
+ * - the timings of the request's stages
+ *
+ * Hosts, query strings and POST parameters, which carry the API keys, are not recorded.
+ * Requests a cache answered any part of are not recorded either: replays bypass the caches,
+ * so they would go upstream for that part and find no recorded answer.
+ * Traces are appended as JSON lines to two files of at most MAX_SEGMENT_BYTES each in the
+ * no backup directory, the older one being dropped when the newer one is full.
+ *
+ * A replayed trace runs through the same request task as the original, with HttpRetriever
+ * answering from the trace after the recorded duration instead of going to the network.
+ * Replays neither read nor write the caches and don't count against quotas, so each one does
+ * the work its original did.
+ */
+public class TraceRecorder {
+
+    private static final String TAG = TraceRecorder.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final String PROP_ENABLED = "persist.mk.weather.trace";
+
+    private static final String TRACE_DIR = "traces";
+    private static final String[] SEGMENTS = new String[] { "trace-0.jsonl", "trace-1.jsonl" };
+    private static final long MAX_SEGMENT_BYTES = 256L * 1024L;
+    // A bigger response can't be replayed faithfully anyway, only its timing is kept
+    private static final int MAX_BODY_LENGTH = 32 * 1024;
+    private static final int MAX_REPLAY_RESULTS = 64;
+
+    private static final double GEO_CELL_DEGREES = 0.05d;
+
+    private static final ThreadLocal<Trace> sCurrent = new ThreadLocal<>();
+
+    private static TraceRecorder sInstance;
+
+    /**
+     * One request, either being recorded or being replayed.
+     */
+    public static class Trace {
+        final JSONObject mRequest;
+        final boolean mReplay;
+        final long mRecordedMillis;
+        final boolean mRecordedSuccess;
+        private final long mStart = SystemClock.elapsedRealtime();
+        private final List<JSONObject> mExchanges = new ArrayList<>();
+        private final JSONObject mStages = new JSONObject();
+        private int mReplayMisses;
+        private volatile boolean mCacheHit;
+
+        private Trace(JSONObject request) {
+            mRequest = request;
+            mReplay = false;
+            mRecordedMillis = 0;
+            mRecordedSuccess = false;
+        }
+
+        private Trace(JSONObject recorded, boolean replay) throws JSONException {
+            mRequest = recorded.getJSONObject("request");
+            mReplay = replay;
+            mRecordedMillis = recorded.getLong("total");
+            mRecordedSuccess = recorded.getBoolean("ok");
+            JSONArray exchanges = recorded.getJSONArray("exchanges");
+            for (int i = 0; i < exchanges.length(); i++) {
+                mExchanges.add(exchanges.getJSONObject(i));
+            }
+        }
+
+        public boolean isReplay() {
+            return mReplay;
+        }
+
+        /**
+         * Returns the time at which the original request was received.
+         */
+        long getRecordedTime() {
+            return mRequest.optLong("time");
+        }
+
+        /**
+         * Rebuilds the request from what was recorded. City names aren't, so replayed results
+         * carry the upstream's name or none; only their timing and outcome are compared.
+         */
+        public RequestInfo toRequestInfo() throws JSONException {
+            RequestInfo.Builder builder = new RequestInfo.Builder(null)
+                    .setTemperatureUnit(mRequest.getInt("unit"));
+            switch (mRequest.getInt("type")) {
+                case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
+                    builder.setWeatherLocation(new WeatherLocation.Builder(
+                            mRequest.getString("cityId"), "")
+                            .setCountryId(mRequest.getString("countryId")).build());
+                    break;
+                case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ:
+                    Location location = new Location(TAG);
+                    location.setLatitude(mRequest.getDouble("lat"));
+                    location.setLongitude(mRequest.getDouble("lon"));
+                    builder.setLocation(location);
+                    break;
+                case RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ:
+                    builder.setCityName(mRequest.getString("query"));
+                    break;
+            }
+            return builder.build();
+        }
+
+        public void mark(String stage) {
+            synchronized (mStages) {
+                try {
+                    mStages.put(stage, SystemClock.elapsedRealtime() - mStart);
+                } catch (JSONException e) {
+                    // Only thrown for non-finite numbers
+                }
+            }
+        }
+
+        void addExchange(String url, long startMillis, long durationMillis, String body) {
+            JSONObject exchange = new JSONObject();
+            try {
+                exchange.put("path", Uri.parse(url).getPath())
+                        .put("at", startMillis - mStart)
+                        .put("ms", durationMillis);
+                if (body != null && body.length() <= MAX_BODY_LENGTH) {
+                    exchange.put("body", body);
+                } else if (body != null) {
+                    exchange.put("truncated", true);
+                }
+            } catch (JSONException e) {
+                return;
+            }
+            synchronized (mExchanges) {
+                mExchanges.add(exchange);
+            }
+        }
+
+        /**
+         * Returns the recorded response to the next request for the path of url, after waiting
+         * as long as it originally took. Null if it failed, was too big to keep or the replay
+         * asks for more than was recorded.
+         */
+        String replay(String url, CancellationSignal signal) {
+            String path = Uri.parse(url).getPath();
+            JSONObject exchange = null;
+            synchronized (mExchanges) {
+                for (int i = 0; i < mExchanges.size(); i++) {
+                    if (path.equals(mExchanges.get(i).optString("path"))) {
+                        exchange = mExchanges.remove(i);
+                        break;
+                    }
+                }
+                if (exchange == null) mReplayMisses++;
+            }
+            if (exchange == null) return null;
+            long until = SystemClock.elapsedRealtime() + exchange.optLong("ms");
+            long left;
+            while ((left = until - SystemClock.elapsedRealtime()) > 0) {
+                if (signal != null) signal.throwIfCanceled();
+                SystemClock.sleep(Math.min(left, 50L));
+            }
+            return exchange.isNull("body") ? null : exchange.optString("body", null);
+        }
+
+        private JSONObject toJson(boolean success) throws JSONException {
+            JSONArray exchanges = new JSONArray();
+            synchronized (mExchanges) {
+                for (JSONObject exchange : mExchanges) {
+                    exchanges.put(exchange);
+                }
+            }
+            synchronized (mStages) {
+                return new JSONObject()
+                        .put("request", mRequest)
+                        .put("total", SystemClock.elapsedRealtime() - mStart)
+                        .put("ok", success)
+                        .put("stages", new JSONObject(mStages.toString()))
+                        .put("exchanges", exchanges);
+            }
+        }
+    }
+
+    private final File mDir;
+    private final LinkedList<String> mReplayResults = new LinkedList<>();
+    private int mSegment;
+
+    private TraceRecorder(Context context) {
+        mDir = new File(context.getNoBackupFilesDir(), TRACE_DIR);
+        // Keep appending to the newer segment
+        File first = new File(mDir, SEGMENTS[0]);
+        File second = new File(mDir, SEGMENTS[1]);
+        mSegment = second.lastModified() > first.lastModified() ? 1 : 0;
+    }
+
+    public static synchronized TraceRecorder get(Context context) {
+        if (sInstance == null) {
+            sInstance = new TraceRecorder(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    public static boolean isEnabled() {
+        return SystemProperties.getBoolean(PROP_ENABLED, false);
+    }
+
+    /**
+     * Starts recording a request, returns null if recording is off.
+     */
+    public Trace begin(RequestInfo requestInfo) {
+        if (!isEnabled()) return null;
+        JSONObject request = new JSONObject();
+        try {
+            request.put("time", System.currentTimeMillis())
+                    .put("type", requestInfo.getRequestType())
+                    .put("unit", requestInfo.getTemperatureUnit());
+            switch (requestInfo.getRequestType()) {
+                case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
+                    WeatherLocation location = requestInfo.getWeatherLocation();
+                    request.put("cityId", location.getCityId())
+                            .put("countryId", location.getCountryId());
+                    break;
+                case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ:
+                    request.put("lat", toCellCenter(requestInfo.getLocation().getLatitude()))
+                            .put("lon", toCellCenter(requestInfo.getLocation().getLongitude()));
+                    break;
+                case RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ:
+                    request.put("query", requestInfo.getCityName());
+                    break;
+            }
+        } catch (JSONException e) {
+            return null;
+        }
+        return new Trace(request);
+    }
+
+    private static double toCellCenter(double degrees) {
+        return (Math.floor(degrees / GEO_CELL_DEGREES) + 0.5d) * GEO_CELL_DEGREES;
+    }
+
+    /**
+     * Makes trace the one HttpRetriever records to, or replays from, on this thread.
+     */
+    public static void attach(Trace trace) {
+        sCurrent.set(trace);
+    }
+
+    public static void detach() {
+        sCurrent.remove();
+    }
+
+    /**
+     * Returns the trace of the request running on this thread, null if there is none.
+     */
+    public static Trace current() {
+        return sCurrent.get();
+    }
+
+    /**
+     * True while this thread replays a trace, so shared state must be left alone.
+     */
+    public static boolean isReplaying() {
+        Trace trace = sCurrent.get();
+        return trace != null && trace.mReplay;
+    }
+
+    /**
+     * Records that a cache answered part of the request running on this thread, which keeps
+     * its trace from being recorded.
+     */
+    public static void markCacheHit() {
+        Trace trace = sCurrent.get();
+        if (trace != null) trace.mCacheHit = true;
+    }
+
+    public static void mark(String stage) {
+        Trace trace = sCurrent.get();
+        if (trace != null) trace.mark(stage);
+    }
+
+    /**
+     * Ends trace: a recording is appended to the trace file, a replay is compared with its
+     * recording. Trace may be null.
+     */
+    public void finish(Trace trace, boolean success) {
+        if (trace == null) return;
+        if (trace.mReplay) {
+            addReplayResult(trace, success);
+            return;
+        }
+        if (trace.mCacheHit) {
+            ProviderMetrics.increment("traces_skipped_cached");
+            return;
+        }
+        String line;
+        try {
+            line = trace.toJson(success).toString() + "\n";
+        } catch (JSONException e) {
+            return;
+        }
+        synchronized (this) {
+            mDir.mkdirs();
+            File file = new File(mDir, SEGMENTS[mSegment]);
+            if (file.length() + line.length() > MAX_SEGMENT_BYTES) {
+                mSegment = 1 - mSegment;
+                file = new File(mDir, SEGMENTS[mSegment]);
+                file.delete();
+            }
+            try (FileOutputStream out = new FileOutputStream(file, true)) {
+                out.write(line.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                if (DEBUG) Log.w(TAG, "Unable to write trace", e);
+            }
+        }
+        ProviderMetrics.increment("traces_recorded");
+    }
+
+    /**
+     * Reads every recorded trace for replay, oldest first.
+     */
+    public synchronized List<Trace> load() {
+        List<Trace> traces = new ArrayList<>();
+        for (int i = 1; i <= SEGMENTS.length; i++) {
+            File file = new File(mDir, SEGMENTS[(mSegment + i) % SEGMENTS.length]);
+            if (!file.exists()) continue;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    try {
+                        traces.add(new Trace(new JSONObject(line), true));
+                    } catch (JSONException e) {
+                        // Torn by a crash mid write, the rest of the file is fine
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to read " + file, e);
+            }
+        }
+        return traces;
+    }
+
+    private synchronized void addReplayResult(Trace trace, boolean success) {
+        long replayed = SystemClock.elapsedRealtime() - trace.mStart;
+        mReplayResults.add(String.format(Locale.US, "type %d: %dms recorded, %dms replayed"
+                        + " (%+d%%)%s%s", trace.mRequest.optInt("type"), trace.mRecordedMillis,
+                replayed, trace.mRecordedMillis > 0
+                        ? (replayed - trace.mRecordedMillis) * 100 / trace.mRecordedMillis : 0,
+                success != trace.mRecordedSuccess ? (success ? ", now succeeds" : ", now fails")
+                        : "",
+                trace.mReplayMisses > 0 ? ", " + trace.mReplayMisses + " unrecorded requests"
+                        : ""));
+        if (mReplayResults.size() > MAX_REPLAY_RESULTS) mReplayResults.removeFirst();
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Trace recording: " + (isEnabled() ? "on" : "off") + ", "
+                + (new File(mDir, SEGMENTS[0]).length() + new File(mDir, SEGMENTS[1]).length())
+                / 1024 + "KB recorded");
+        if (mReplayResults.isEmpty()) return;
+        pw.println("Replayed traces:");
+        for (String result : mReplayResults) {
+            pw.println("  " + result);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Map;
+
+/**
+ * UV index per coarse lat/lon cell. UV changes slowly and barely varies over tens of
+ * kilometres, so nearby geo requests share one upstream lookup per cell and hour. Values are
+ * persisted so they survive process restarts.
+ */
+public class UvIndexCache {
+
+    // About 28km at the equator, less towards the poles
+    private static final double CELL_DEGREES = 0.25d;
+    public static final long TTL = 1000L * 60L * 60L;
+
+    private static final String PREFS_NAME = "uv_index";
+    private static final String VALUE_SUFFIX = ":value";
+    private static final String TIME_SUFFIX = ":time";
+
+    private static UvIndexCache sInstance;
+
+    private final SharedPreferences mPrefs;
+
+    private UvIndexCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prune();
+    }
+
+    public static synchronized UvIndexCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = new UvIndexCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the cached UV index of the cell containing the coordinates, or NaN if there is
+     * none younger than TTL.
+     */
+    public double get(double latitude, double longitude) {
+        if (TraceRecorder.isReplaying()) return Double.NaN;
+        String cell = cellOf(latitude, longitude);
+        long age = System.currentTimeMillis() - mPrefs.getLong(cell + TIME_SUFFIX, 0);
+        if (age < 0 || age >= TTL) {
+            ProviderMetrics.increment("uv_cache_misses");
+            return Double.NaN;
+        }
+        ProviderMetrics.increment("uv_cache_hits");
+        TraceRecorder.markCacheHit();
+        return mPrefs.getFloat(cell + VALUE_SUFFIX, Float.NaN);
+    }
+
+    public void put(double latitude, double longitude, double index) {
+        if (TraceRecorder.isReplaying()) return;
+        String cell = cellOf(latitude, longitude);
+        mPrefs.edit()
+                .putFloat(cell + VALUE_SUFFIX, (float) index)
+                .putLong(cell + TIME_SUFFIX, System.currentTimeMillis())
+                .apply();
+    }
+
+    private void prune() {
+        long now = System.currentTimeMillis();
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            String key = entry.getKey();
+            if (!key.endsWith(TIME_SUFFIX)) continue;
+            long age = now - (Long) entry.getValue();
+            if (age < 0 || age >= TTL) {
+                String cell = key.substring(0, key.length() - TIME_SUFFIX.length());
+                editor.remove(key).remove(cell + VALUE_SUFFIX);
+            }
+        }
+        editor.apply();
+    }
+
+    private static String cellOf(double latitude, double longitude) {
+        return (long) Math.floor(latitude / CELL_DEGREES)
+                + ":" + (long) Math.floor(longitude / CELL_DEGREES);
+    }
+}
@@ -0,0 +1,509 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.content.Context;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+import mokee.providers.WeatherContract;
+import mokee.weather.WeatherInfo;
+import mokee.weather.WeatherInfo.DayForecast;
+
+/**
+ * Last fetched weather per location key. Current conditions and the daily forecast are kept
+ * apart because they age at very different rates: a refresh whose forecast is still fresh only
+ * needs to download current conditions and merge them with the cached forecast.
+ *
+ * Entries are canonical: metric values, WeatherCode conditions and numeric AQI/UV levels.
+ * Units and localised labels are applied in buildWeatherInfo, so neither a unit nor a locale
+ * change invalidates anything.
+ *
+ * Forecasts remember the day they start on. Once a day boundary passes, entries are read
+ * rolled forward: the forecast drops the days that are over and today's low, high and
+ * condition come from the forecast, so a cached result stays usable for as long as its
+ * forecast covers today. Such entries are marked as derived.
+ *
+ * At most MAX_LOCATIONS locations are kept, the one least recently stored or read goes first.
+ */
+public class WeatherCache {
+
+    // Conditions are fresh for as long as WeatherFreshness says, this is for those without one
+    public static final long CURRENT_TTL = WeatherFreshness.DEFAULT_TTL;
+    public static final long FORECAST_TTL = 1000L * 60L * 60L * 3L;
+    // Far more than a device follows at once, locations it passed through get dropped
+    public static final int MAX_LOCATIONS = 32;
+
+    private static final double KPH_TO_MPH = 0.621371d;
+    private static final long DAY = 1000L * 60L * 60L * 24L;
+
+    /**
+     * Current conditions, temperatures in celsius and wind speed in km/h.
+     */
+    public static class Conditions {
+        public final String city;
+        public final String cityEn;
+        public final double temperature;
+        public final double humidity;
+        public final double windSpeed;
+        public final double windDirection;
+        public final double todaysLow;
+        public final double todaysHigh;
+        public final int conditionCode;
+        public final int aqi;
+        public final int uvLevel;
+        // The upstream's own UV label when it has no level, null otherwise
+        public final String uvBrief;
+        public final long timestamp;
+        // Rolled forward from an earlier day's fetch, never stored
+        public final boolean derived;
+
+        public Conditions(String city, String cityEn, double temperature, double humidity,
+                double windSpeed, double windDirection, double todaysLow, double todaysHigh,
+                int conditionCode, int aqi, int uvLevel) {
+            this(city, cityEn, temperature, humidity, windSpeed, windDirection, todaysLow,
+                    todaysHigh, conditionCode, aqi, uvLevel, System.currentTimeMillis());
+        }
+
+        public Conditions(String city, String cityEn, double temperature, double humidity,
+                double windSpeed, double windDirection, double todaysLow, double todaysHigh,
+                int conditionCode, int aqi, int uvLevel, long timestamp) {
+            this(city, cityEn, temperature, humidity, windSpeed, windDirection, todaysLow,
+                    todaysHigh, conditionCode, aqi, uvLevel, null, timestamp);
+        }
+
+        public Conditions(String city, String cityEn, double temperature, double humidity,
+                double windSpeed, double windDirection, double todaysLow, double todaysHigh,
+                int conditionCode, int aqi, int uvLevel, String uvBrief, long timestamp) {
+            // Every refresh of a location parses the same names again, keep one copy of each
+            this.city = city != null ? city.intern() : null;
+            this.cityEn = cityEn != null ? cityEn.intern() : null;
+            this.temperature = temperature;
+            this.humidity = humidity;
+            this.windSpeed = windSpeed;
+            this.windDirection = windDirection;
+            this.todaysLow = todaysLow;
+            this.todaysHigh = todaysHigh;
+            this.conditionCode = conditionCode;
+            this.aqi = aqi;
+            this.uvLevel = uvLevel;
+            this.uvBrief = uvBrief != null ? uvBrief.intern() : null;
+            this.timestamp = timestamp;
+            this.derived = false;
+        }
+
+        // Takes today's values from the first day of forecast
+        private Conditions(Conditions stale, Forecast forecast) {
+            this.city = stale.city;
+            this.cityEn = stale.cityEn;
+            // The last observation is all there is, keep it within today's range at least
+            this.temperature = Math.max(forecast.getLow(0),
+                    Math.min(forecast.getHigh(0), stale.temperature));
+            this.humidity = stale.humidity;
+            this.windSpeed = stale.windSpeed;
+            this.windDirection = stale.windDirection;
+            this.todaysLow = forecast.getLow(0);
+            this.todaysHigh = forecast.getHigh(0);
+            this.conditionCode = forecast.getConditionCode(0);
+            // Air quality and UV are observations of their day, they don't carry over
+            this.aqi = WeatherLabels.AQI_NOT_AVAILABLE;
+            this.uvLevel = WeatherLabels.UV_NOT_AVAILABLE;
+            this.uvBrief = null;
+            this.timestamp = stale.timestamp;
+            this.derived = true;
+        }
+
+        // Rough heap footprint, the names are shared with every other copy
+        long estimateBytes() {
+            return 8 + 4 * 2 + 6 * 8 + 3 * 4 + 8 + 4;
+        }
+    }
+
+    /**
+     * Daily forecast starting on startDay, temperatures in celsius. Days are packed into
+     * parallel arrays rather than kept as DayForecast objects, which are only built when a
+     * result is served; forecasts rolled forward share the arrays of the one they came from.
+     */
+    public static class Forecast {
+        private final int[] mConditionCodes;
+        private final double[] mLows;
+        private final double[] mHighs;
+        // Index of the first day in the arrays, non-zero once rolled forward
+        private final int mOffset;
+        public final long timestamp;
+        // Local day number of the first day, see dayOf
+        public final long startDay;
+
+        public Forecast(List<DayForecast> days) {
+            this(days, System.currentTimeMillis());
+        }
+
+        public Forecast(List<DayForecast> days, long timestamp) {
+            this(days, timestamp, dayOf(timestamp));
+        }
+
+        public Forecast(List<DayForecast> days, long timestamp, long startDay) {
+            mConditionCodes = new int[days.size()];
+            mLows = new double[days.size()];
+            mHighs = new double[days.size()];
+            for (int i = 0; i < days.size(); i++) {
+                DayForecast day = days.get(i);
+                mConditionCodes[i] = day.getConditionCode();
+                mLows[i] = day.getLow();
+                mHighs[i] = day.getHigh();
+            }
+            mOffset = 0;
+            this.timestamp = timestamp;
+            this.startDay = startDay;
+        }
+
+        /**
+         * Takes ownership of the arrays, which must be of the same length.
+         */
+        public Forecast(int[] conditionCodes, double[] lows, double[] highs, long timestamp,
+                long startDay) {
+            this(conditionCodes, lows, highs, 0, timestamp, startDay);
+        }
+
+        private Forecast(int[] conditionCodes, double[] lows, double[] highs, int offset,
+                long timestamp, long startDay) {
+            mConditionCodes = conditionCodes;
+            mLows = lows;
+            mHighs = highs;
+            mOffset = offset;
+            this.timestamp = timestamp;
+            this.startDay = startDay;
+        }
+
+        public int size() {
+            return mConditionCodes.length - mOffset;
+        }
+
+        public int getConditionCode(int day) {
+            return mConditionCodes[mOffset + day];
+        }
+
+        public double getLow(int day) {
+            return mLows[mOffset + day];
+        }
+
+        public double getHigh(int day) {
+            return mHighs[mOffset + day];
+        }
+
+        public boolean isDerived() {
+            return startDay != dayOf(timestamp);
+        }
+
+        /**
+         * Returns this forecast starting on day, or null if it doesn't reach that far.
+         */
+        Forecast rollTo(long day) {
+            int offset = (int) (day - startDay);
+            if (offset <= 0) return this;
+            if (offset >= size()) return null;
+            return new Forecast(mConditionCodes, mLows, mHighs, mOffset + offset, timestamp,
+                    day);
+        }
+
+        // Rough heap footprint: the object and its three arrays
+        long estimateBytes() {
+            return 40 + 3 * 16 + mConditionCodes.length * (4 + 8 + 8);
+        }
+    }
+
+    /**
+     * Returns the local day number of a point in time.
+     */
+    public static long dayOf(long millis) {
+        return Math.floorDiv(millis + TimeZone.getDefault().getOffset(millis), DAY);
+    }
+
+    /**
+     * Told about every entry stored through put and every location evicted to make room, on
+     * the thread that caused it.
+     */
+    public interface Listener {
+        void onWeatherChanged(String key, Conditions conditions, Forecast forecast);
+
+        void onWeatherEvicted(String key);
+    }
+
+    /**
+     * Where entries dropped by shed are restored from.
+     */
+    public interface Source {
+        void restoreInto(WeatherCache cache);
+    }
+
+    private static final WeatherCache sInstance = new WeatherCache();
+
+    private final Map<String, Conditions> mConditions = new ConcurrentHashMap<>();
+    private final Map<String, Forecast> mForecasts = new ConcurrentHashMap<>();
+    private final Map<String, Long> mConditionsTtls = new ConcurrentHashMap<>();
+    // Keys in access order, least recently used first
+    private final LinkedHashMap<String, Boolean> mUsage = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile Listener mListener;
+    private volatile Source mSource;
+    // Set once entries were dropped to free memory, the next access restores them
+    private volatile boolean mShed;
+
+    public static WeatherCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns the cached conditions for key if they are younger than their TTL.
+     */
+    public Conditions getFreshConditions(String key) {
+        if (TraceRecorder.isReplaying()) return null;
+        Conditions conditions = getConditions(key);
+        if (conditions == null || !isFresh(conditions.timestamp, getConditionsTtl(key))) {
+            return null;
+        }
+        TraceRecorder.markCacheHit();
+        return conditions;
+    }
+
+    /**
+     * Returns how long the conditions of key stay fresh, see WeatherFreshness.
+     */
+    public long getConditionsTtl(String key) {
+        ensureRestored();
+        Long ttl = key != null ? mConditionsTtls.get(key) : null;
+        return ttl != null ? ttl : CURRENT_TTL;
+    }
+
+    /**
+     * Returns the cached forecast for key if it is younger than FORECAST_TTL.
+     */
+    public Forecast getFreshForecast(String key) {
+        if (TraceRecorder.isReplaying()) return null;
+        Forecast forecast = getForecast(key);
+        if (forecast == null || !isFresh(forecast.timestamp, FORECAST_TTL)) return null;
+        TraceRecorder.markCacheHit();
+        return forecast;
+    }
+
+    /**
+     * Returns the cached conditions for key whatever their age, rolled forward to today. Null
+     * if they are from an earlier day the forecast no longer covers.
+     */
+    public Conditions getConditions(String key) {
+        ensureRestored();
+        Conditions conditions = key != null ? mConditions.get(key) : null;
+        if (conditions == null) return null;
+        markUsed(key);
+        long today = dayOf(System.currentTimeMillis());
+        if (dayOf(conditions.timestamp) >= today) return conditions;
+        Forecast forecast = getForecast(key);
+        if (forecast == null) return null;
+        ProviderMetrics.increment("rolled_forward_reads");
+        return new Conditions(conditions, forecast);
+    }
+
+    /**
+     * Returns the cached forecast for key whatever its age, starting today. Null if it doesn't
+     * reach today.
+     */
+    public Forecast getForecast(String key) {
+        ensureRestored();
+        Forecast forecast = key != null ? mForecasts.get(key) : null;
+        if (forecast == null) return null;
+        markUsed(key);
+        return forecast.rollTo(dayOf(System.currentTimeMillis()));
+    }
+
+    public void put(String key, Conditions conditions, Forecast forecast) {
+        if (key == null || TraceRecorder.isReplaying()) return;
+        // The TTL depends on the conditions replaced
+        ensureRestored();
+        if (conditions != null) {
+            Conditions previous = mConditions.put(key, conditions);
+            mConditionsTtls.put(key, WeatherFreshness.getTtl(previous, conditions));
+        }
+        if (forecast != null) mForecasts.put(key, forecast);
+        // Evicts before the listener saves key, so its snapshots only drop what the cache did
+        addUsed(key);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onWeatherChanged(key, mConditions.get(key), mForecasts.get(key));
+        }
+    }
+
+    /**
+     * Fills in an entry saved by an earlier process. Anything fetched since wins and the
+     * listener isn't told.
+     */
+    public void restore(String key, Conditions conditions, Forecast forecast) {
+        if (key == null) return;
+        if (conditions != null && mConditions.putIfAbsent(key, conditions) == null) {
+            mConditionsTtls.put(key, WeatherFreshness.getTtl(null, conditions));
+        }
+        if (forecast != null) mForecasts.putIfAbsent(key, forecast);
+        addUsed(key);
+    }
+
+    private void markUsed(String key) {
+        synchronized (mUsage) {
+            mUsage.get(key);
+        }
+    }
+
+    // Makes key the most recently used, evicting the least recently used location if full
+    private void addUsed(String key) {
+        String eldest = null;
+        synchronized (mUsage) {
+            mUsage.put(key, Boolean.TRUE);
+            if (mUsage.size() > MAX_LOCATIONS) {
+                eldest = mUsage.keySet().iterator().next();
+                mUsage.remove(eldest);
+            }
+        }
+        if (eldest == null) return;
+        mConditions.remove(eldest);
+        mForecasts.remove(eldest);
+        mConditionsTtls.remove(eldest);
+        ProviderMetrics.increment("cache_evictions");
+        Listener listener = mListener;
+        if (listener != null) listener.onWeatherEvicted(eldest);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void setSource(Source source) {
+        mSource = source;
+    }
+
+    public List<String> getKeys() {
+        ensureRestored();
+        return new ArrayList<>(mConditions.keySet());
+    }
+
+    /**
+     * Drops every entry to free memory, returns about how many bytes they held. They are
+     * restored from the source on next use, or fetched again if there is none; the source
+     * must not keep its own copy in memory, or shedding frees nothing.
+     */
+    public synchronized long shed() {
+        long bytes = estimateBytes();
+        mConditions.clear();
+        mForecasts.clear();
+        mConditionsTtls.clear();
+        synchronized (mUsage) {
+            mUsage.clear();
+        }
+        mShed = true;
+        return bytes;
+    }
+
+    private void ensureRestored() {
+        if (!mShed) return;
+        synchronized (this) {
+            if (!mShed) return;
+            mShed = false;
+            Source source = mSource;
+            if (source != null) source.restoreInto(this);
+        }
+    }
+
+    private static boolean isFresh(long timestamp, long ttl) {
+        long age = System.currentTimeMillis() - timestamp;
+        return age >= 0 && age < ttl;
+    }
+
+    /**
+     * Builds the result served to clients, in the unit they asked for and with labels in the
+     * current locale.
+     */
+    public static WeatherInfo buildWeatherInfo(Context context, Conditions conditions,
+            Forecast forecast, int tempUnit) {
+        boolean metric = tempUnit != WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT;
+        WeatherInfo.Builder weatherInfo = new WeatherInfo.Builder(
+                WeatherLabels.getCityName(conditions.city, conditions.cityEn),
+                convertTemperature(conditions.temperature, metric),
+                metric ? WeatherContract.WeatherColumns.TempUnit.CELSIUS
+                        : WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT);
+        weatherInfo.setHumidity(conditions.humidity);
+        if (metric) {
+            weatherInfo.setWind(conditions.windSpeed, conditions.windDirection,
+                    WeatherContract.WeatherColumns.WindSpeedUnit.KPH);
+        } else {
+            weatherInfo.setWind(conditions.windSpeed * KPH_TO_MPH, conditions.windDirection,
+                    WeatherContract.WeatherColumns.WindSpeedUnit.MPH);
+        }
+        weatherInfo.setTodaysLow(convertTemperature(conditions.todaysLow, metric));
+        weatherInfo.setTodaysHigh(convertTemperature(conditions.todaysHigh, metric));
+        weatherInfo.setTimestamp(conditions.timestamp);
+        weatherInfo.setWeatherCondition(conditions.conditionCode);
+        if (conditions.aqi != WeatherLabels.AQI_NOT_AVAILABLE) {
+            weatherInfo.setAqi(WeatherLabels.getAqiLevelName(context, conditions.aqi));
+        }
+        if (conditions.uvLevel != WeatherLabels.UV_NOT_AVAILABLE) {
+            weatherInfo.setUv(WeatherLabels.getUVLevelName(context, conditions.uvLevel));
+        } else if (conditions.uvBrief != null) {
+            weatherInfo.setUv(WeatherLabels.getUVBriefName(context, conditions.uvBrief));
+        }
+        ArrayList<DayForecast> days = new ArrayList<>(forecast.size());
+        for (int i = 0; i < forecast.size(); i++) {
+            days.add(new DayForecast.Builder(forecast.getConditionCode(i))
+                    .setLow(convertTemperature(forecast.getLow(i), metric))
+                    .setHigh(convertTemperature(forecast.getHigh(i), metric)).build());
+        }
+        weatherInfo.setForecast(days);
+        return weatherInfo.build();
+    }
+
+    private static double convertTemperature(double celsius, boolean metric) {
+        return metric ? celsius : (celsius * 1.8d) + 32d;
+    }
+
+    /**
+     * Returns the approximate heap footprint of the cached entries, keys and names excluded.
+     */
+    public long estimateBytes() {
+        long bytes = 0;
+        for (Conditions conditions : mConditions.values()) {
+            bytes += conditions.estimateBytes();
+        }
+        for (Forecast forecast : mForecasts.values()) {
+            bytes += forecast.estimateBytes();
+        }
+        return bytes;
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("Weather cache: " + mConditions.size() + " locations, about "
+                + estimateBytes() / 1024 + "KB");
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Conditions> entry : mConditions.entrySet()) {
+            Forecast forecast = mForecasts.get(entry.getKey());
+            pw.println("  " + entry.getKey() + " current "
+                    + (now - entry.getValue().timestamp) / 1000 + "s old (ttl "
+                    + getConditionsTtl(entry.getKey()) / 1000 + "s), forecast "
+                    + (forecast != null ? (now - forecast.timestamp) / 1000 + "s old" : "none"));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import mokee.providers.WeatherContract.WeatherColumns.WeatherCode;
+
+/**
+ * How long current conditions stay fresh, from what the weather is doing. Clear skies are
+ * polled rarely, while storms or weather that just changed are polled more often.
+ */
+public class WeatherFreshness {
+
+    public static final long VOLATILE_TTL = 1000L * 60L * 5L;
+    public static final long DEFAULT_TTL = 1000L * 60L * 10L;
+    public static final long STABLE_TTL = 1000L * 60L * 30L;
+
+    // Temperature swing per hour past which the weather counts as changing
+    private static final double VOLATILE_DEGREES_PER_HOUR = 3d;
+
+    /**
+     * Returns the TTL of current, given the conditions it replaces (may be null).
+     */
+    public static long getTtl(WeatherCache.Conditions previous,
+            WeatherCache.Conditions current) {
+        long ttl = getTtl(current.conditionCode);
+        if (previous != null && isChanging(previous, current)) {
+            // Whatever the sky says, it is on the move, look again soon
+            ttl = Math.max(VOLATILE_TTL, ttl / 2);
+        }
+        return ttl;
+    }
+
+    private static boolean isChanging(WeatherCache.Conditions previous,
+            WeatherCache.Conditions current) {
+        if (previous.conditionCode != current.conditionCode) return true;
+        long elapsed = current.timestamp - previous.timestamp;
+        // Readings a day apart say nothing about the trend
+        if (elapsed <= 0 || elapsed > 1000L * 60L * 60L * 6L) return false;
+        double perHour = Math.abs(current.temperature - previous.temperature)
+                * (1000d * 60d * 60d) / elapsed;
+        return perHour >= VOLATILE_DEGREES_PER_HOUR;
+    }
+
+    private static long getTtl(int conditionCode) {
+        switch (conditionCode) {
+            case WeatherCode.THUNDERSHOWER:
+            case WeatherCode.HEAVY_THUNDERSTORM:
+            case WeatherCode.HAIL:
+            case WeatherCode.HEAVY_RAIN:
+            case WeatherCode.EXTREME_RAIN:
+            case WeatherCode.HEAVY_SHOWER_RAIN:
+            case WeatherCode.RAIN_STORM:
+            case WeatherCode.HEAVY_RAIN_STORM:
+            case WeatherCode.SEVERE_RAIN_STORM:
+            case WeatherCode.FREEZING_RAIN:
+            case WeatherCode.HEAVY_SNOW:
+            case WeatherCode.SNOWSTORM:
+            case WeatherCode.GALE:
+            case WeatherCode.STRONG_GALE:
+            case WeatherCode.STORM:
+            case WeatherCode.VIOLENT_STORM:
+            case WeatherCode.TROPICAL_STORM:
+            case WeatherCode.HURRICANE:
+            case WeatherCode.TORNADO:
+            case WeatherCode.DUSTSTORM:
+            case WeatherCode.SANDSTORM:
+                return VOLATILE_TTL;
+            case WeatherCode.SUNNY:
+            case WeatherCode.FEW_CLOUDS:
+            case WeatherCode.PARTLY_CLOUDY:
+            case WeatherCode.CLOUDY:
+            case WeatherCode.OVERCAST:
+            case WeatherCode.CALM:
+            case WeatherCode.HOT:
+            case WeatherCode.COLD:
+                return STABLE_TTL;
+        }
+        return DEFAULT_TTL;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.content.Context;
+import android.mokee.utils.MoKeeUtils;
+
+import java.util.Locale;
+
+/**
+ * Localised labels for cached values. The cache only ever holds numbers and codes, these are
+ * applied when a result is served so a locale change never requires a refetch.
+ */
+public class WeatherLabels {
+
+    public static final int AQI_NOT_AVAILABLE = -1;
+    public static final int UV_NOT_AVAILABLE = 0;
+
+    private static final int[] AQI_LEVEL_NAMES = new int[] {
+            R.string.aqi_level_1, R.string.aqi_level_2, R.string.aqi_level_3,
+            R.string.aqi_level_4, R.string.aqi_level_5, R.string.aqi_level_6
+    };
+    private static final int[] UV_LEVEL_NAMES = new int[] {
+            R.string.uv_level_1, R.string.uv_level_2, R.string.uv_level_3,
+            R.string.uv_level_4, R.string.uv_level_5
+    };
+
+    // Labels of the current locale, resolved once instead of for every result served
+    private static Locale sLabelsLocale;
+    private static String sAqiPrefix;
+    private static String[] sAqiLevelNames;
+    private static String[] sUvLevelNames;
+
+    private static synchronized void ensureLabels(Context context) {
+        Locale locale = context.getResources().getConfiguration().locale;
+        if (locale.equals(sLabelsLocale)) return;
+        sAqiPrefix = context.getString(R.string.aqi) + " ";
+        sAqiLevelNames = new String[AQI_LEVEL_NAMES.length];
+        for (int i = 0; i < AQI_LEVEL_NAMES.length; i++) {
+            sAqiLevelNames[i] = context.getString(AQI_LEVEL_NAMES[i]);
+        }
+        String uvPrefix = context.getString(R.string.uv) + " ";
+        sUvLevelNames = new String[UV_LEVEL_NAMES.length];
+        for (int i = 0; i < UV_LEVEL_NAMES.length; i++) {
+            sUvLevelNames[i] = uvPrefix + context.getString(UV_LEVEL_NAMES[i]);
+        }
+        sLabelsLocale = locale;
+    }
+
+    public static synchronized String getAqiLevelName(Context context, int aqi) {
+        ensureLabels(context);
+        int level;
+        if (aqi <= 50) {
+            level = 0;
+        } else if (aqi <= 100) {
+            level = 1;
+        } else if (aqi <= 150) {
+            level = 2;
+        } else if (aqi <= 200) {
+            level = 3;
+        } else if (aqi <= 300) {
+            level = 4;
+        } else {
+            level = 5;
+        }
+        return new StringBuilder(sAqiPrefix.length() + sAqiLevelNames[level].length() + 5)
+                .append(sAqiPrefix).append(aqi).append(' ')
+                .append(sAqiLevelNames[level]).toString();
+    }
+
+    /**
+     * Maps a UV index to a level between 1 (low) and 5 (extreme).
+     */
+    public static int getUVLevel(double index) {
+        if (index < 3) {
+            return 1;
+        } else if (index >= 3 && index < 6) {
+            return 2;
+        } else if (index >= 6 && index < 8) {
+            return 3;
+        } else if (index >= 8 && index < 11) {
+            return 4;
+        } else {
+            return 5;
+        }
+    }
+
+    /**
+     * Maps the brief UV suggestion of the MoKee cloud to a level between 1 and 5, or
+     * UV_NOT_AVAILABLE for a brief it doesn't know, which is then shown as it is. The briefs
+     * stand for UV index bands of 0-2, 3-4, 5-6, 7-9 and 10 or more; the last one and the
+     * extreme brief are both level 5.
+     */
+    public static int getUVLevel(String brief) {
+        switch (brief) {
+            case "最弱":
+                return 1;
+            case "弱":
+                return 2;
+            case "中等":
+                return 3;
+            case "强":
+                return 4;
+            case "很强":
+            case "极强":
+                return 5;
+        }
+        return UV_NOT_AVAILABLE;
+    }
+
+    /**
+     * Returns the label of a brief UV suggestion getUVLevel doesn't know, as the MoKee cloud
+     * worded it.
+     */
+    public static synchronized String getUVBriefName(Context context, String brief) {
+        return context.getString(R.string.uv) + " " + brief;
+    }
+
+    public static synchronized String getUVLevelName(Context context, int level) {
+        ensureLabels(context);
+        // Anything but the first four levels is extreme
+        return sUvLevelNames[level >= 1 && level < UV_LEVEL_NAMES.length ? level - 1
+                : UV_LEVEL_NAMES.length - 1];
+    }
+
+    /**
+     * Picks the city name to show. Chinese cities carry both names, the English one is used
+     * when the system language isn't supported by the MoKee cloud.
+     */
+    public static String getCityName(String name, String nameEn) {
+        if (nameEn == null || nameEn.isEmpty() || MoKeeUtils.isSupportLanguage(false)) {
+            return name;
+        }
+        return getFormattedNameLetter(nameEn);
+    }
+
+    public static String getFormattedNameLetter(String cityName) {
+        if (cityName.isEmpty() || Character.isUpperCase(cityName.charAt(0))) return cityName;
+        return Character.toUpperCase(cityName.charAt(0)) + cityName.substring(1);
+    }
+}
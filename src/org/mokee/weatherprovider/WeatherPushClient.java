@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.CancellationSignal;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import com.mokee.security.RSAUtils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Optional server-sent events subscription to the MoKee cloud. It subscribes to every cached
+ * Chinese city and stores updates in the weather cache as they are published, so requests for
+ * those cities are answered from the cache and polling is only the fallback.
+ *
+ * The stream is a POST with the encrypted city ids, answered with text/event-stream. Each
+ * "weather" event carries {"city_id": ..., "weather": ...}, the weather object having the same
+ * form as in getWeatherByCityIDv2 responses. Event ids are sequence numbers; the last one
+ * applied is persisted and sent as Last-Event-ID, so a reconnect resumes where it left off.
+ */
+public class WeatherPushClient {
+
+    private static final String TAG = WeatherPushClient.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    // Key of the switch in the settings screen
+    public static final String PREF_ENABLED = "push_updates";
+
+    private static final String URL_STREAM =
+            "http://cloud.mokeedev.com/weather/streamByCityIDv2";
+    // Points the client at a stand-in event server for testing
+    private static final String PROP_STREAM_URL = "persist.mk.weather.push_url";
+
+    private static final String PREFS_NAME = "weather_push";
+    private static final String PREF_LAST_EVENT_ID = "last_event_id";
+
+    private static final String CHINA_CITY_PREFIX = LocationKeys.forCity("0086", "");
+
+    private static final long MIN_BACKOFF = 1000L;
+    private static final long MAX_BACKOFF = 5L * 60L * 1000L;
+    private static final int CONNECT_TIMEOUT = 15 * 1000;
+    // The server sends a comment line at least every 30s, a quieter stream is dead
+    private static final int READ_TIMEOUT = 90 * 1000;
+
+    private final SharedPreferences mState;
+    private final String mStreamUrl;
+    private final Random mRandom = new Random();
+
+    // The loop started last, null while stopped. One that was stopped keeps running until it
+    // notices, only ever on its own state, so a quick stop and start can't leave two running
+    // on the same subscription.
+    private Loop mLoop;
+
+    /**
+     * One run of the subscription, from start() to stop().
+     */
+    private class Loop implements Runnable {
+        final CancellationSignal signal = new CancellationSignal();
+        final Object lock = new Object();
+        volatile boolean resubscribe;
+        volatile boolean connected;
+        volatile HttpURLConnection connection;
+        volatile Set<String> subscribed = Collections.emptySet();
+
+        @Override
+        public void run() {
+            long backoff = MIN_BACKOFF;
+            while (!signal.isCanceled()) {
+                resubscribe = false;
+                Set<String> areaIds = getCachedAreaIds();
+                if (areaIds.isEmpty()) {
+                    // Nothing to subscribe to until a Chinese city gets fetched
+                    await(0);
+                    continue;
+                }
+                boolean received = stream(this, areaIds);
+                subscribed = Collections.emptySet();
+                if (signal.isCanceled()) break;
+                if (resubscribe) continue;
+                if (received) backoff = MIN_BACKOFF;
+                ProviderMetrics.increment("push_reconnects");
+                // Jittered so clients dropped by the same server restart don't return in
+                // lockstep
+                await(backoff / 2 + (long) (mRandom.nextDouble() * backoff / 2));
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            }
+        }
+
+        void cancel() {
+            signal.cancel();
+            wakeUp();
+        }
+
+        void requestResubscribe() {
+            resubscribe = true;
+            wakeUp();
+        }
+
+        // Ends the current wait or stream, the loop then decides what to do next
+        private void wakeUp() {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+            HttpURLConnection current = connection;
+            if (current != null) current.disconnect();
+        }
+
+        private void await(long millis) {
+            synchronized (lock) {
+                if (signal.isCanceled() || resubscribe) return;
+                try {
+                    lock.wait(millis);
+                } catch (InterruptedException e) {
+                    // Checked by the loop
+                }
+            }
+        }
+    }
+
+    public WeatherPushClient(Context context) {
+        this(context, null);
+    }
+
+    /**
+     * @param streamUrl where to subscribe, null for the cloud or the stand-in set in
+     *                  PROP_STREAM_URL
+     */
+    WeatherPushClient(Context context, String streamUrl) {
+        mState = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mStreamUrl = streamUrl;
+    }
+
+    public synchronized void start() {
+        if (mLoop != null) return;
+        mLoop = new Loop();
+        new Thread(mLoop, TAG).start();
+    }
+
+    public synchronized void stop() {
+        if (mLoop == null) return;
+        mLoop.cancel();
+        mLoop = null;
+    }
+
+    /**
+     * Makes sure updates for key are received, reconnecting with the new set of cities if the
+     * current subscription lacks it. Keys of other than Chinese cities are ignored.
+     */
+    public void ensureSubscribed(String key) {
+        Loop loop;
+        synchronized (this) {
+            loop = mLoop;
+        }
+        if (loop == null || key == null || !key.startsWith(CHINA_CITY_PREFIX)) return;
+        if (loop.subscribed.contains(key.substring(CHINA_CITY_PREFIX.length()))) return;
+        if (DEBUG) Log.d(TAG, "Resubscribing for " + key);
+        loop.requestResubscribe();
+    }
+
+    private static Set<String> getCachedAreaIds() {
+        Set<String> areaIds = new TreeSet<>();
+        for (String key : WeatherCache.getInstance().getKeys()) {
+            if (key.startsWith(CHINA_CITY_PREFIX)) {
+                areaIds.add(key.substring(CHINA_CITY_PREFIX.length()));
+            }
+        }
+        return areaIds;
+    }
+
+    /**
+     * Subscribes to areaIds and applies events until the stream ends. Returns whether anything
+     * was received, which tells a healthy stream that ended from one that never worked.
+     */
+    private boolean stream(Loop loop, Set<String> areaIds) {
+        boolean received = false;
+        HttpURLConnection connection = null;
+        try {
+            StringBuilder params = new StringBuilder();
+            for (String areaId : areaIds) {
+                if (params.length() > 0) params.append('&');
+                params.append("city_id=").append(RSAUtils.rsaEncryptByPublicKey(areaId));
+            }
+            connection = (HttpURLConnection) new URL(mStreamUrl != null ? mStreamUrl
+                    : SystemProperties.get(PROP_STREAM_URL, URL_STREAM)).openConnection();
+            loop.connection = connection;
+            if (loop.signal.isCanceled() || loop.resubscribe) return false;
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setUseCaches(false);
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setRequestProperty("Accept", "text/event-stream");
+            String lastEventId = mState.getString(PREF_LAST_EVENT_ID, null);
+            if (lastEventId != null) {
+                connection.setRequestProperty("Last-Event-ID", lastEventId);
+            }
+            connection.getOutputStream().write(params.toString().getBytes(StandardCharsets.UTF_8));
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                if (DEBUG) Log.d(TAG, "Stream refused: " + connection.getResponseCode());
+                return false;
+            }
+            loop.subscribed = areaIds;
+            loop.connected = true;
+            if (DEBUG) Log.d(TAG, "Subscribed to " + areaIds.size() + " cities");
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    connection.getInputStream(), StandardCharsets.UTF_8));
+            String eventId = null;
+            String eventType = null;
+            StringBuilder data = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                received = true;
+                if (line.isEmpty()) {
+                    if (data.length() > 0 && "weather".equals(eventType)) {
+                        apply(data.toString(), eventId, loop.signal);
+                    }
+                    eventType = null;
+                    data.setLength(0);
+                    continue;
+                }
+                if (line.startsWith(":")) continue;
+                int colon = line.indexOf(':');
+                String field = colon < 0 ? line : line.substring(0, colon);
+                String value = colon < 0 ? "" : line.substring(
+                        line.startsWith(" ", colon + 1) ? colon + 2 : colon + 1);
+                switch (field) {
+                    case "id":
+                        eventId = value;
+                        break;
+                    case "event":
+                        eventType = value;
+                        break;
+                    case "data":
+                        if (data.length() > 0) data.append('\n');
+                        data.append(value);
+                        break;
+                }
+            }
+        } catch (Exception e) {
+            // IO errors, disconnects by wakeUp and RSAUtils failures all mean reconnecting
+            if (DEBUG) Log.d(TAG, "Stream ended", e);
+        } finally {
+            loop.connected = false;
+            loop.connection = null;
+            if (connection != null) connection.disconnect();
+        }
+        return received;
+    }
+
+    private void apply(String data, String eventId, CancellationSignal signal) {
+        try {
+            JSONObject event = new JSONObject(data);
+            String key = LocationKeys.forCity("0086", event.getString("city_id"));
+            // Names come from the request that first fetched the city, the stream has none
+            WeatherCache.Conditions current = WeatherCache.getInstance().getConditions(key);
+            if (current != null) {
+                MoKeeCloudParser.Result result = MoKeeCloudParser.parse(
+                        event.getJSONObject("weather"), current.city, current.cityEn,
+                        new RequestDeadline(RequestDeadline.DEFAULT_BUDGET), signal);
+                WeatherCache.getInstance().put(key, result.conditions, result.forecast);
+                ProviderMetrics.increment("push_updates_applied");
+            }
+        } catch (JSONException e) {
+            ProviderMetrics.increment("push_updates_rejected");
+            if (DEBUG) Log.w(TAG, "Bad update event " + eventId, e);
+        }
+        // Skip what can't be applied too, it would fail the same way after a reconnect
+        if (eventId != null) {
+            mState.edit().putString(PREF_LAST_EVENT_ID, eventId).apply();
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        Loop loop;
+        synchronized (this) {
+            loop = mLoop;
+        }
+        pw.println("Push updates: " + (loop == null ? "off" : loop.connected
+                ? "connected, " + loop.subscribed.size() + " cities" : "reconnecting")
+                + ", last event " + mState.getString(PREF_LAST_EVENT_ID, "none"));
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Last weather cache entry of each location, saved so readers have something to show right
+ * after the process restarts. Entries are stored in the cache's canonical form, one JSON
+ * object per location key, in a file that is only read to restore or update it so none of it
+ * stays on the heap. It holds no more locations than the cache, whose evictions remove them.
+ */
+public class WeatherSnapshotStore implements WeatherCache.Source {
+
+    private static final String TAG = WeatherSnapshotStore.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final String FILE_NAME = "weather_snapshot.json";
+    // Where earlier versions kept the snapshots, moved into the file on first use
+    private static final String LEGACY_PREFS_NAME = "weather_snapshot";
+
+    // Stores of the service and the provider share the file
+    private static final Object sLock = new Object();
+
+    private final Context mContext;
+    private final File mFile;
+
+    public WeatherSnapshotStore(Context context) {
+        mContext = context;
+        mFile = new File(context.getNoBackupFilesDir(), FILE_NAME);
+    }
+
+    public void save(String key, WeatherCache.Conditions conditions,
+            WeatherCache.Forecast forecast) {
+        try {
+            JSONObject json = new JSONObject();
+            if (conditions != null) json.put("conditions", toJson(conditions));
+            if (forecast != null) json.put("forecast", toJson(forecast));
+            synchronized (sLock) {
+                JSONObject entries = read();
+                entries.put(key, json);
+                prune(entries);
+                write(entries);
+            }
+        } catch (JSONException e) {
+            if (DEBUG) Log.w(TAG, "Unable to save snapshot of " + key, e);
+        }
+    }
+
+    public void remove(String key) {
+        synchronized (sLock) {
+            JSONObject entries = read();
+            if (entries.remove(key) != null) write(entries);
+        }
+    }
+
+    /**
+     * Hands every saved entry to cache, least recently fetched first.
+     */
+    @Override
+    public void restoreInto(WeatherCache cache) {
+        JSONObject entries;
+        synchronized (sLock) {
+            entries = read();
+        }
+        List<String> keys = sortedByAge(entries);
+        for (String key : keys) {
+            try {
+                JSONObject json = entries.getJSONObject(key);
+                cache.restore(key,
+                        json.has("conditions")
+                                ? conditionsFromJson(json.getJSONObject("conditions")) : null,
+                        json.has("forecast")
+                                ? forecastFromJson(json.getJSONObject("forecast")) : null);
+            } catch (JSONException e) {
+                if (DEBUG) Log.w(TAG, "Dropping bad snapshot of " + key, e);
+                remove(key);
+            }
+        }
+    }
+
+    // Keeps the most recently fetched entries, as many as the cache holds
+    private static void prune(JSONObject entries) {
+        List<String> keys = sortedByAge(entries);
+        for (int i = 0; i < keys.size() - WeatherCache.MAX_LOCATIONS; i++) {
+            entries.remove(keys.get(i));
+        }
+    }
+
+    private static List<String> sortedByAge(final JSONObject entries) {
+        List<String> keys = new ArrayList<>(entries.length());
+        Iterator<String> iterator = entries.keys();
+        while (iterator.hasNext()) {
+            keys.add(iterator.next());
+        }
+        Collections.sort(keys, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Long.compare(fetchedAt(entries.optJSONObject(a)),
+                        fetchedAt(entries.optJSONObject(b)));
+            }
+        });
+        return keys;
+    }
+
+    private static long fetchedAt(JSONObject json) {
+        if (json == null) return 0;
+        long conditions = json.has("conditions")
+                ? json.optJSONObject("conditions").optLong("timestamp") : 0;
+        long forecast = json.has("forecast")
+                ? json.optJSONObject("forecast").optLong("timestamp") : 0;
+        return Math.max(conditions, forecast);
+    }
+
+    private JSONObject read() {
+        if (!mFile.exists()) return migrate();
+        try (InputStream in = new FileInputStream(mFile)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, count);
+            }
+            return new JSONObject(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Discarding unreadable weather snapshots", e);
+            mFile.delete();
+            return new JSONObject();
+        }
+    }
+
+    private void write(JSONObject entries) {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(entries.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to save weather snapshots", e);
+            return;
+        }
+        if (!tmp.renameTo(mFile)) tmp.delete();
+    }
+
+    private JSONObject migrate() {
+        SharedPreferences prefs = mContext.getSharedPreferences(LEGACY_PREFS_NAME,
+                Context.MODE_PRIVATE);
+        Map<String, ?> legacy = prefs.getAll();
+        JSONObject entries = new JSONObject();
+        if (legacy.isEmpty()) return entries;
+        for (Map.Entry<String, ?> entry : legacy.entrySet()) {
+            try {
+                entries.put(entry.getKey(), new JSONObject((String) entry.getValue()));
+            } catch (JSONException | ClassCastException e) {
+                if (DEBUG) Log.w(TAG, "Dropping bad snapshot of " + entry.getKey(), e);
+            }
+        }
+        prune(entries);
+        write(entries);
+        prefs.edit().clear().commit();
+        return entries;
+    }
+
+    private static JSONObject toJson(WeatherCache.Conditions conditions) throws JSONException {
+        return new JSONObject()
+                .put("city", conditions.city)
+                .put("cityEn", conditions.cityEn)
+                .put("temperature", conditions.temperature)
+                .put("humidity", conditions.humidity)
+                .put("windSpeed", conditions.windSpeed)
+                .put("windDirection", conditions.windDirection)
+                .put("todaysLow", conditions.todaysLow)
+                .put("todaysHigh", conditions.todaysHigh)
+                .put("conditionCode", conditions.conditionCode)
+                .put("aqi", conditions.aqi)
+                .put("uvLevel", conditions.uvLevel)
+                .putOpt("uvBrief", conditions.uvBrief)
+                .put("timestamp", conditions.timestamp);
+    }
+
+    private static WeatherCache.Conditions conditionsFromJson(JSONObject json)
+            throws JSONException {
+        return new WeatherCache.Conditions(json.getString("city"),
+                json.isNull("cityEn") ? null : json.getString("cityEn"),
+                json.getDouble("temperature"), json.getDouble("humidity"),
+                json.getDouble("windSpeed"), json.getDouble("windDirection"),
+                json.getDouble("todaysLow"), json.getDouble("todaysHigh"),
+                json.getInt("conditionCode"), json.getInt("aqi"), json.getInt("uvLevel"),
+                json.isNull("uvBrief") ? null : json.getString("uvBrief"),
+                json.getLong("timestamp"));
+    }
+
+    private static JSONObject toJson(WeatherCache.Forecast forecast) throws JSONException {
+        JSONArray days = new JSONArray();
+        for (int i = 0; i < forecast.size(); i++) {
+            days.put(new JSONArray()
+                    .put(forecast.getConditionCode(i))
+                    .put(forecast.getLow(i))
+                    .put(forecast.getHigh(i)));
+        }
+        return new JSONObject()
+                .put("days", days)
+                .put("timestamp", forecast.timestamp)
+                .put("startDay", forecast.startDay);
+    }
+
+    private static WeatherCache.Forecast forecastFromJson(JSONObject json) throws JSONException {
+        JSONArray jsonDays = json.getJSONArray("days");
+        int[] conditionCodes = new int[jsonDays.length()];
+        double[] lows = new double[jsonDays.length()];
+        double[] highs = new double[jsonDays.length()];
+        for (int i = 0; i < jsonDays.length(); i++) {
+            JSONArray day = jsonDays.getJSONArray(i);
+            conditionCodes[i] = day.getInt(0);
+            lows[i] = day.getDouble(1);
+            highs[i] = day.getDouble(2);
+        }
+        long timestamp = json.getLong("timestamp");
+        return new WeatherCache.Forecast(conditionCodes, lows, highs, timestamp,
+                json.optLong("startDay", WeatherCache.dayOf(timestamp)));
+    }
+}
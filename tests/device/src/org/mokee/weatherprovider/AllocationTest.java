@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.CancellationSignal;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import mokee.providers.WeatherContract;
+
+/**
+ * Guards the request paths that were trimmed of short-lived garbage. Counts are per call,
+ * after a first call has filled whatever is cached.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AllocationTest {
+
+    private static final int ITERATIONS = 100;
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    @Test
+    public void coordinatesAllocateLessThanFormat() {
+        final double latitude = 39.904211;
+        final double longitude = 116.407395;
+        long trimmed = countPerCall(new Runnable() {
+            @Override
+            public void run() {
+                GlobalWeatherProvider.selectCoordinates(latitude, longitude);
+            }
+        });
+        long formatted = countPerCall(new Runnable() {
+            @Override
+            public void run() {
+                String.format(Locale.US, "lat=%f&lon=%f", latitude, longitude);
+            }
+        });
+        assertEquals("lat=39.904211&lon=116.407395",
+                GlobalWeatherProvider.selectCoordinates(latitude, longitude));
+        assertTrue("selectCoordinates allocates " + trimmed, trimmed <= 6);
+        assertTrue(trimmed * 2 < formatted);
+    }
+
+    @Test
+    public void geoKeyAllocatesFewObjects() {
+        final Location location = new Location("test");
+        location.setLatitude(39.904211);
+        location.setLongitude(116.407395);
+        long count = countPerCall(new Runnable() {
+            @Override
+            public void run() {
+                LocationKeys.forGeoLocation(location);
+            }
+        });
+        assertTrue("forGeoLocation allocates " + count, count <= 6);
+    }
+
+    @Test
+    public void labelsAreResolvedOncePerLocale() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        long uv = countPerCall(new Runnable() {
+            @Override
+            public void run() {
+                WeatherLabels.getUVLevelName(context, 3);
+            }
+        });
+        long aqi = countPerCall(new Runnable() {
+            @Override
+            public void run() {
+                WeatherLabels.getAqiLevelName(context, 120);
+            }
+        });
+        assertEquals(0, uv);
+        // Only the label itself, the value is part of it
+        assertTrue("getAqiLevelName allocates " + aqi, aqi <= 4);
+    }
+
+    @Test
+    public void readStreamDoesNotAllocatePerLine() {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            body.append("{\"line\":").append(i).append("}\n");
+        }
+        final byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        long count = countPerCall(new Runnable() {
+            @Override
+            public void run() {
+                HttpRetriever.readStream(new ByteArrayInputStream(bytes));
+            }
+        });
+        // A reader, its decoder and a few builder resizes, whatever the number of lines
+        assertTrue("readStream allocates " + count, count <= 32);
+    }
+
+    @Test
+    public void weatherRequestStaysWithinBudget() throws JSONException {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final String response = newResponse();
+        final RequestDeadline deadline = new RequestDeadline(RequestDeadline.DEFAULT_BUDGET);
+        final CancellationSignal signal = new CancellationSignal();
+        final WeatherCache cache = new WeatherCache();
+        final String key = LocationKeys.forCity("0086", "101010100");
+
+        // The response starts with yesterday, which has to be skipped
+        MoKeeCloudParser.Result result = MoKeeCloudParser.parseResponse(response, "北京",
+                "beijing", deadline, signal);
+        assertEquals(WeatherCache.dayOf(System.currentTimeMillis()), result.forecast.startDay);
+        assertEquals(11, result.forecast.getLow(0), 0);
+        assertEquals(11, result.conditions.todaysLow, 0);
+        assertEquals(2, result.conditions.uvLevel);
+
+        long tree = countPerCall(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new JSONObject(response);
+                } catch (JSONException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        long parsed = countPerCall(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    MoKeeCloudParser.parseResponse(response, "北京", "beijing", deadline,
+                            signal);
+                } catch (JSONException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        long request = countPerCall(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    MoKeeCloudParser.Result result = MoKeeCloudParser.parseResponse(response,
+                            "北京", "beijing", deadline, signal);
+                    cache.put(key, result.conditions, result.forecast);
+                    WeatherCache.buildWeatherInfo(context, result.conditions, result.forecast,
+                            WeatherContract.WeatherColumns.TempUnit.CELSIUS);
+                } catch (JSONException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        // The JSON tree is the parser's own business, only what is built from it counts
+        assertTrue("parse allocates " + (parsed - tree), parsed - tree <= 40);
+        assertTrue("a weather request allocates " + (request - tree), request - tree <= 160);
+    }
+
+    // A getWeatherByCityIDv2 response as sent shortly after midnight, yesterday still first
+    private static String newResponse() throws JSONException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+        long now = System.currentTimeMillis();
+        JSONArray days = new JSONArray();
+        for (int i = 0; i <= GlobalWeatherProvider.FORECAST_DAYS; i++) {
+            days.put(new JSONObject()
+                    .put("date", format.format(new Date(now + (i - 1) * DAY)))
+                    .put("cond", new JSONObject().put("code_d", 100 + i))
+                    .put("tmp", new JSONObject().put("min", 10 + i).put("max", 20 + i)));
+        }
+        JSONObject weather = new JSONObject()
+                .put("now", new JSONObject()
+                        .put("tmp", 15)
+                        .put("hum", 40)
+                        .put("wind", new JSONObject().put("spd", 3).put("deg", 90))
+                        .put("cond", new JSONObject().put("code", 100)))
+                .put("daily_forecast", days)
+                .put("aqi", new JSONObject().put("city", new JSONObject().put("aqi", 80)))
+                .put("suggestion", new JSONObject()
+                        .put("uv", new JSONObject().put("brf", "弱")));
+        return new JSONObject()
+                .put(MoKeeCloudParser.MAIN_NODE, new JSONArray().put(weather)).toString();
+    }
+
+    // The per-thread counters are deprecated without a replacement, they still work
+    @SuppressWarnings("deprecation")
+    private static long countPerCall(Runnable call) {
+        call.run();
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+            for (int i = 0; i < ITERATIONS; i++) {
+                call.run();
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        return Debug.getThreadAllocCount() / ITERATIONS;
+    }
+}
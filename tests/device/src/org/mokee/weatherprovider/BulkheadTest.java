@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+public class BulkheadTest {
+
+    // Far below the call timeouts, a call that had to wait for a hung one couldn't make it
+    private static final long PROMPT_MILLIS = 1000L;
+
+    private ThreadPoolExecutor mExecutor;
+    private final List<CancellationSignal> mSignals = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mExecutor = Bulkhead.newCallerExecutor("BulkheadTest", 4, 4, 0, Bulkhead.MOKEE,
+                Bulkhead.PLACEFINDER, Bulkhead.OWM);
+    }
+
+    @After
+    public void tearDown() {
+        for (CancellationSignal signal : mSignals) {
+            signal.cancel();
+        }
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void hungUpstreamDoesNotDelayAnother() throws Exception {
+        // More hung calls than the mokee bulkhead has threads and queue places together
+        int hung = 16;
+        CountDownLatch started = new CountDownLatch(2);
+        List<Future<String>> hungResults = new ArrayList<>();
+        for (int i = 0; i < hung; i++) {
+            hungResults.add(mExecutor.submit(callThrough(Bulkhead.MOKEE, hang(started))));
+        }
+        assertTrue("mokee calls never started", started.await(5, TimeUnit.SECONDS));
+
+        long start = SystemClock.elapsedRealtime();
+        Future<String> other = mExecutor.submit(callThrough(Bulkhead.OWM, answer("owm")));
+        assertEquals("owm", other.get(PROMPT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(SystemClock.elapsedRealtime() - start < PROMPT_MILLIS);
+
+        // The calls past the mokee queue are turned away, not left waiting
+        int rejected = 0;
+        long deadline = SystemClock.elapsedRealtime() + PROMPT_MILLIS;
+        while (rejected == 0 && SystemClock.elapsedRealtime() < deadline) {
+            for (Future<String> result : hungResults) {
+                if (result.isDone()) {
+                    assertNull(result.get());
+                    rejected++;
+                }
+            }
+            SystemClock.sleep(10);
+        }
+        assertTrue("no mokee call was rejected", rejected > 0);
+    }
+
+    @Test
+    public void callerExecutorGrowsOnlyWhenQueueIsFull() throws Exception {
+        // One core thread, two queued tasks, then a thread per call the owm bulkhead admits
+        ThreadPoolExecutor executor = Bulkhead.newCallerExecutor("BulkheadTest", 1, 2, 0,
+                Bulkhead.OWM);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocked = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        try {
+            for (int i = 0; i < 3; i++) {
+                executor.execute(blocked);
+            }
+            assertEquals(1, executor.getPoolSize());
+
+            int capacity = executor.getMaximumPoolSize() + 2;
+            for (int i = 3; i < capacity; i++) {
+                executor.execute(blocked);
+            }
+            assertEquals(executor.getMaximumPoolSize(), executor.getPoolSize());
+            try {
+                executor.execute(blocked);
+                fail("saturated executor accepted work");
+            } catch (RejectedExecutionException e) {
+                // Expected
+            }
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    private Callable<String> callThrough(final Bulkhead bulkhead, final Bulkhead.Call<String> call) {
+        final CancellationSignal signal = new CancellationSignal();
+        mSignals.add(signal);
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                return bulkhead.call(call, signal, 0);
+            }
+        };
+    }
+
+    private static Bulkhead.Call<String> hang(final CountDownLatch started) {
+        return new Bulkhead.Call<String>() {
+            @Override
+            public String run(CancellationSignal signal) {
+                started.countDown();
+                while (!signal.isCanceled()) {
+                    SystemClock.sleep(10);
+                }
+                return null;
+            }
+        };
+    }
+
+    private static Bulkhead.Call<String> answer(final String value) {
+        return new Bulkhead.Call<String>() {
+            @Override
+            public String run(CancellationSignal signal) {
+                return value;
+            }
+        };
+    }
+}
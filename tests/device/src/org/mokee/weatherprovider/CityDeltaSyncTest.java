@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Base64;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+
+/**
+ * Runs delta sync from changeset files against a copy of the bundled database, in a context
+ * whose files and preferences are kept apart from the provider's own.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CityDeltaSyncTest {
+
+    private static final String AREA_ID = "999999901";
+    private static final String NAME = "deltaville";
+
+    private TestContext mContext;
+    private File mChangesets;
+    private KeyPair mKeyPair;
+
+    private static class TestContext extends ContextWrapper {
+        final File root;
+
+        TestContext(Context base, File root) {
+            super(base);
+            this.root = root;
+        }
+
+        @Override
+        public File getNoBackupFilesDir() {
+            return mkdirs(new File(root, "no_backup"));
+        }
+
+        @Override
+        public File getFilesDir() {
+            return mkdirs(new File(root, "files"));
+        }
+
+        @Override
+        public File getDatabasePath(String name) {
+            return new File(mkdirs(new File(root, "databases")), name);
+        }
+
+        @Override
+        public SharedPreferences getSharedPreferences(String name, int mode) {
+            return super.getSharedPreferences("test_" + name, mode);
+        }
+
+        private static File mkdirs(File dir) {
+            dir.mkdirs();
+            return dir;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Context target = InstrumentationRegistry.getTargetContext();
+        File root = new File(target.getCacheDir(), "CityDeltaSyncTest");
+        deleteRecursively(root);
+        mContext = new TestContext(target, root);
+        mChangesets = TestContext.mkdirs(new File(root, "changesets"));
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        mKeyPair = generator.generateKeyPair();
+
+        // The index is a process wide singleton, map the one built from the test database
+        CityIndex.release();
+        CityIndex.build(mContext);
+        assertNotNull(CityIndex.get(mContext));
+    }
+
+    @After
+    public void tearDown() {
+        CityIndex.release();
+        mContext.getSharedPreferences("city_sync", Context.MODE_PRIVATE).edit().clear().commit();
+        deleteRecursively(mContext.root);
+    }
+
+    @Test
+    public void appliesChangesetsToDatabaseAndIndex() throws Exception {
+        writeChangeset(1, 2, "insert", mKeyPair.getPrivate());
+        CityDeltaSync sync = newSync();
+
+        assertEquals(1, sync.sync());
+        assertEquals(2, sync.getVersion());
+        assertEquals(1, CityIndex.get(mContext)
+                .findEquals(DatabaseContracts.NAMEEN_INDEX, NAME).length);
+
+        // The overlay outlives the mapping it was applied to
+        CityIndex.release();
+        assertEquals(1, CityIndex.get(mContext)
+                .findEquals(DatabaseContracts.NAMEEN_INDEX, NAME).length);
+
+        writeChangeset(2, 3, "delete", mKeyPair.getPrivate());
+        assertEquals(1, sync.sync());
+        assertEquals(3, sync.getVersion());
+        assertEquals(0, CityIndex.get(mContext)
+                .findEquals(DatabaseContracts.NAMEEN_INDEX, NAME).length);
+    }
+
+    @Test
+    public void keepsVersionWhenOverlayCannotBeSaved() throws Exception {
+        // A directory where the overlay is written first makes saving it fail
+        assertTrue(new File(mContext.getNoBackupFilesDir(), "cityindex_overlay.json.tmp")
+                .mkdirs());
+        writeChangeset(1, 2, "insert", mKeyPair.getPrivate());
+        CityDeltaSync sync = newSync();
+
+        assertEquals(0, sync.sync());
+        assertEquals(1, sync.getVersion());
+    }
+
+    @Test
+    public void rejectsChangesetSignedWithAnotherKey() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        writeChangeset(1, 2, "insert", generator.generateKeyPair().getPrivate());
+        CityDeltaSync sync = newSync();
+
+        assertEquals(0, sync.sync());
+        assertEquals(1, sync.getVersion());
+        assertEquals(0, CityIndex.get(mContext)
+                .findEquals(DatabaseContracts.NAMEEN_INDEX, NAME).length);
+    }
+
+    private CityDeltaSync newSync() {
+        return new CityDeltaSync(mContext, new CityDeltaSync.FileChangesetSource(mChangesets),
+                mKeyPair.getPublic());
+    }
+
+    private void writeChangeset(int from, int to, String op, PrivateKey key) throws Exception {
+        JSONObject change = new JSONObject();
+        change.put("op", op);
+        if ("delete".equals(op)) {
+            change.put("areaid", AREA_ID);
+        } else {
+            change.put("row", new JSONArray().put(AREA_ID).put(NAME).put("测试").put(NAME)
+                    .put("测试").put("中国"));
+        }
+        JSONObject payload = new JSONObject();
+        payload.put("from", from);
+        payload.put("to", to);
+        payload.put("changes", new JSONArray().put(change));
+        String text = payload.toString();
+
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(key);
+        signature.update(text.getBytes(StandardCharsets.UTF_8));
+        JSONObject envelope = new JSONObject();
+        envelope.put("payload", text);
+        envelope.put("signature", Base64.encodeToString(signature.sign(), Base64.NO_WRAP));
+
+        try (FileOutputStream out = new FileOutputStream(new File(mChangesets, from + ".json"))) {
+            out.write(envelope.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
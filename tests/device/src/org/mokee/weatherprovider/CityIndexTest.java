@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class CityIndexTest {
+
+    private File mFile;
+    private CityIndex mIndex;
+
+    @Before
+    public void setUp() throws IOException {
+        List<byte[][]> rows = new ArrayList<>();
+        // Out of AREAID order, the writer sorts them
+        rows.add(row("101020100", "shanghai", "上海", "shanghai", "上海", "中国"));
+        rows.add(row("101010100", "beijing", "北京", "beijing", "北京", "中国"));
+        rows.add(row("101010200", "haidian", "海淀", "beijing", "北京", "中国"));
+        rows.add(row("101280601", "shenzhen", "深圳", "shenzhen", "深圳", "中国"));
+        mFile = File.createTempFile("cityindex", ".dat");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile))) {
+            CityIndexWriter.write(rows, out);
+        }
+        mIndex = CityIndex.map(mFile);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void readsRowsInAreaIdOrder() {
+        assertEquals(4, mIndex.getRowCount());
+        assertEquals("101010100", mIndex.getString(0, DatabaseContracts.AREAID_INDEX));
+        assertEquals("haidian", mIndex.getString(1, DatabaseContracts.NAMEEN_INDEX));
+        assertEquals("上海", mIndex.getString(2, DatabaseContracts.NAMECN_INDEX));
+        assertEquals("中国", mIndex.getString(3, DatabaseContracts.NATIONCN_INDEX));
+    }
+
+    @Test
+    public void findsEqualValues() {
+        assertArrayEquals(new int[] { 0, 1 },
+                mIndex.findEquals(DatabaseContracts.DISTRICTEN_INDEX, "beijing"));
+        assertArrayEquals(new int[] { 3 },
+                mIndex.findEquals(DatabaseContracts.NAMEEN_INDEX, "shenzhen"));
+        assertArrayEquals(new int[0], mIndex.findEquals(DatabaseContracts.NAMEEN_INDEX, "bei"));
+    }
+
+    @Test
+    public void findsValuesContainedInText() {
+        assertArrayEquals(new int[] { 0, 1, 2 },
+                mIndex.findContainedIn(DatabaseContracts.DISTRICTCN_INDEX, "北京上海"));
+        assertArrayEquals(new int[] { 1 },
+                mIndex.findContainedIn(DatabaseContracts.NAMECN_INDEX, "海淀区"));
+    }
+
+    private static byte[][] row(String... values) {
+        byte[][] row = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            row[i] = values[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return row;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Subscribes to an event server on the loopback interface, standing in for the one set in
+ * persist.mk.weather.push_url.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WeatherPushClientTest {
+
+    private static final String AREA_ID = "999999902";
+    private static final String KEY = LocationKeys.forCity("0086", AREA_ID);
+    private static final long TIMEOUT_MILLIS = 5000L;
+
+    private ServerSocket mServer;
+    private final AtomicInteger mOpenStreams = new AtomicInteger();
+    private final AtomicInteger mAcceptedStreams = new AtomicInteger();
+    private WeatherPushClient mClient;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        context.getSharedPreferences("weather_push", Context.MODE_PRIVATE).edit().clear()
+                .commit();
+        // Only cities already cached are subscribed to and updated
+        WeatherCache.getInstance().put(KEY, new WeatherCache.Conditions("测试", "test", 5,
+                50, 1, 0, 0, 10, 0, WeatherLabels.AQI_NOT_AVAILABLE,
+                WeatherLabels.UV_NOT_AVAILABLE), null);
+
+        mServer = new ServerSocket(0, 8, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = mServer.accept();
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }).start();
+                    }
+                } catch (IOException e) {
+                    // Closed by tearDown
+                }
+            }
+        });
+        acceptor.start();
+        mClient = new WeatherPushClient(context, "http://127.0.0.1:" + mServer.getLocalPort()
+                + "/weather/streamByCityIDv2");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mClient.stop();
+        mServer.close();
+    }
+
+    @Test
+    public void appliesPublishedUpdates() {
+        mClient.start();
+        long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MILLIS;
+        while (WeatherCache.getInstance().getConditions(KEY).temperature != 21
+                && SystemClock.elapsedRealtime() < deadline) {
+            SystemClock.sleep(20);
+        }
+        WeatherCache.Conditions conditions = WeatherCache.getInstance().getConditions(KEY);
+        assertEquals(21, conditions.temperature, 0);
+        // Names stay those of the request that first fetched the city
+        assertEquals("测试", conditions.city);
+        assertEquals(5, WeatherCache.getInstance().getForecast(KEY).size());
+    }
+
+    @Test
+    public void restartingRunsOneSubscription() {
+        mClient.start();
+        awaitOpenStreams(1);
+        int accepted = mAcceptedStreams.get();
+
+        // Toggled off and on faster than the first loop can notice
+        mClient.stop();
+        mClient.start();
+        awaitOpenStreams(1);
+        // Longer than a stopped loop would back off before reconnecting
+        SystemClock.sleep(2000);
+
+        assertEquals(1, mOpenStreams.get());
+        assertEquals(accepted + 1, mAcceptedStreams.get());
+    }
+
+    private void awaitOpenStreams(int count) {
+        long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MILLIS;
+        while ((mOpenStreams.get() != count || mAcceptedStreams.get() == 0)
+                && SystemClock.elapsedRealtime() < deadline) {
+            SystemClock.sleep(20);
+        }
+        assertTrue(mOpenStreams.get() == count);
+    }
+
+    // Answers a subscription with one update and keeps it open until the client hangs up
+    private void serve(Socket socket) {
+        mAcceptedStreams.incrementAndGet();
+        mOpenStreams.incrementAndGet();
+        try {
+            InputStream in = socket.getInputStream();
+            readRequest(in);
+            OutputStream out = socket.getOutputStream();
+            out.write(("HTTP/1.1 200 OK\r\n"
+                    + "Content-Type: text/event-stream\r\n"
+                    + "Connection: close\r\n\r\n"
+                    + ": subscribed\n\n"
+                    + "id: 7\n"
+                    + "event: weather\n"
+                    + "data: " + newEvent() + "\n\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            while (in.read() >= 0) {
+                // Nothing more comes from the client, this waits for it to disconnect
+            }
+        } catch (Exception e) {
+            // Disconnected
+        } finally {
+            mOpenStreams.decrementAndGet();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    private static void readRequest(InputStream in) throws IOException {
+        StringBuilder headers = new StringBuilder();
+        while (!headers.toString().endsWith("\r\n\r\n")) {
+            int c = in.read();
+            if (c < 0) throw new IOException("Request ended early");
+            headers.append((char) c);
+        }
+        String lower = headers.toString().toLowerCase();
+        int lengthStart = lower.indexOf("content-length:");
+        if (lengthStart >= 0) {
+            int lengthEnd = lower.indexOf("\r\n", lengthStart);
+            int length = Integer.parseInt(lower.substring(lengthStart + 15, lengthEnd).trim());
+            for (int i = 0; i < length; i++) {
+                if (in.read() < 0) throw new IOException("Body ended early");
+            }
+        } else if (lower.contains("transfer-encoding: chunked")) {
+            StringBuilder body = new StringBuilder();
+            while (!body.toString().endsWith("0\r\n\r\n")) {
+                int c = in.read();
+                if (c < 0) throw new IOException("Body ended early");
+                body.append((char) c);
+            }
+        }
+    }
+
+    private static String newEvent() throws Exception {
+        // Starting today, the cache drops forecasts that are over
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+        long now = System.currentTimeMillis();
+        JSONArray days = new JSONArray();
+        for (int i = 0; i < GlobalWeatherProvider.FORECAST_DAYS; i++) {
+            days.put(new JSONObject()
+                    .put("date", format.format(new Date(now + i * 24L * 60 * 60 * 1000)))
+                    .put("cond", new JSONObject().put("code_d", 100))
+                    .put("tmp", new JSONObject().put("min", 10 + i).put("max", 20 + i)));
+        }
+        JSONObject weather = new JSONObject()
+                .put("now", new JSONObject()
+                        .put("tmp", 21)
+                        .put("hum", 40)
+                        .put("wind", new JSONObject().put("spd", 3).put("deg", 90))
+                        .put("cond", new JSONObject().put("code", 100)))
+                .put("daily_forecast", days);
+        return new JSONObject().put("city_id", AREA_ID).put("weather", weather).toString();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that the cache and its snapshots stay within MAX_LOCATIONS, using a cache and a
+ * store of their own rather than the provider's.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WeatherSnapshotStoreTest {
+
+    private TestContext mContext;
+    private WeatherSnapshotStore mStore;
+    private WeatherCache mCache;
+    private final List<String> mEvicted = new ArrayList<>();
+
+    private static class TestContext extends ContextWrapper {
+        final File root;
+
+        TestContext(Context base, File root) {
+            super(base);
+            this.root = root;
+        }
+
+        @Override
+        public File getNoBackupFilesDir() {
+            root.mkdirs();
+            return root;
+        }
+
+        @Override
+        public SharedPreferences getSharedPreferences(String name, int mode) {
+            return super.getSharedPreferences("test_" + name, mode);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Context target = InstrumentationRegistry.getTargetContext();
+        File root = new File(target.getCacheDir(), "WeatherSnapshotStoreTest");
+        mContext = new TestContext(target, root);
+        tearDown();
+        mStore = new WeatherSnapshotStore(mContext);
+        mCache = new WeatherCache();
+        mCache.setListener(new WeatherCache.Listener() {
+            @Override
+            public void onWeatherChanged(String key, WeatherCache.Conditions conditions,
+                    WeatherCache.Forecast forecast) {
+                mStore.save(key, conditions, forecast);
+            }
+
+            @Override
+            public void onWeatherEvicted(String key) {
+                mEvicted.add(key);
+                mStore.remove(key);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mContext.getSharedPreferences("weather_snapshot", Context.MODE_PRIVATE).edit().clear()
+                .commit();
+        File[] files = mContext.root.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mContext.root.delete();
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedLocation() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < WeatherCache.MAX_LOCATIONS; i++) {
+            mCache.put(key(i), conditions(now - WeatherCache.MAX_LOCATIONS + i), null);
+        }
+        // Read after the others were stored, so the second one is the least recently used
+        assertNotNull(mCache.getConditions(key(0)));
+
+        mCache.put(key(WeatherCache.MAX_LOCATIONS), conditions(now), null);
+
+        assertEquals(1, mEvicted.size());
+        assertEquals(key(1), mEvicted.get(0));
+        assertNull(mCache.getConditions(key(1)));
+        assertNotNull(mCache.getConditions(key(0)));
+        assertEquals(WeatherCache.MAX_LOCATIONS, mCache.getKeys().size());
+
+        WeatherCache restored = new WeatherCache();
+        new WeatherSnapshotStore(mContext).restoreInto(restored);
+        assertEquals(WeatherCache.MAX_LOCATIONS, restored.getKeys().size());
+        assertNull(restored.getConditions(key(1)));
+    }
+
+    @Test
+    public void keepsMostRecentlyFetchedSnapshots() {
+        long now = System.currentTimeMillis();
+        // Saved newest first, so only their age tells which to drop
+        for (int i = WeatherCache.MAX_LOCATIONS; i >= 0; i--) {
+            mStore.save(key(i), conditions(now - i), null);
+        }
+
+        WeatherCache restored = new WeatherCache();
+        mStore.restoreInto(restored);
+        assertEquals(WeatherCache.MAX_LOCATIONS, restored.getKeys().size());
+        assertNull(restored.getConditions(key(WeatherCache.MAX_LOCATIONS)));
+        assertNotNull(restored.getConditions(key(0)));
+    }
+
+    @Test
+    public void movesSnapshotsOutOfPreferences() {
+        // Where earlier versions kept them
+        SharedPreferences prefs = mContext.getSharedPreferences("weather_snapshot",
+                Context.MODE_PRIVATE);
+        prefs.edit().putString(key(0), "{\"conditions\":{\"city\":\"测试\",\"cityEn\":\"test\","
+                + "\"temperature\":5,\"humidity\":50,\"windSpeed\":1,\"windDirection\":0,"
+                + "\"todaysLow\":0,\"todaysHigh\":10,\"conditionCode\":0,"
+                + "\"aqi\":" + WeatherLabels.AQI_NOT_AVAILABLE + ","
+                + "\"uvLevel\":" + WeatherLabels.UV_NOT_AVAILABLE + ","
+                + "\"timestamp\":" + System.currentTimeMillis() + "}}").commit();
+
+        WeatherCache restored = new WeatherCache();
+        mStore.restoreInto(restored);
+        assertEquals("test", restored.getConditions(key(0)).cityEn);
+        assertEquals(0, prefs.getAll().size());
+        assertTrue(new File(mContext.getNoBackupFilesDir(), "weather_snapshot.json").exists());
+    }
+
+    private static String key(int i) {
+        return LocationKeys.forCity("0086", String.valueOf(999990000 + i));
+    }
+
+    private static WeatherCache.Conditions conditions(long timestamp) {
+        return new WeatherCache.Conditions("测试", "test", 5, 50, 1, 0, 0, 10, 0,
+                WeatherLabels.AQI_NOT_AVAILABLE, WeatherLabels.UV_NOT_AVAILABLE, timestamp);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.weatherprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class FetchPolicyTest {
+
+    private static final long FRESH = 10L * 60L * 1000L;
+    private static final long STALE = FetchPolicy.MAX_DEFERRED_AGE + 1;
+
+    private static class FakeConnectivityState implements FetchPolicy.ConnectivityState {
+        boolean connected = true;
+        boolean metered;
+        boolean captivePortal;
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public boolean isMetered() {
+            return metered;
+        }
+
+        @Override
+        public boolean isCaptivePortal() {
+            return captivePortal;
+        }
+    }
+
+    private FakeConnectivityState mState;
+    private FetchPolicy<String> mPolicy;
+
+    @Before
+    public void setUp() {
+        mState = new FakeConnectivityState();
+        mPolicy = new FetchPolicy<>(mState);
+    }
+
+    @Test
+    public void fetchesOnUnmeteredNetwork() {
+        assertEquals(FetchPolicy.Decision.FETCH, mPolicy.decide(false, true, FRESH));
+        assertEquals(FetchPolicy.Decision.FETCH, mPolicy.decide(true, false, 0));
+    }
+
+    @Test
+    public void servesCacheOfAnyAgeWhileOffline() {
+        mState.connected = false;
+        assertEquals(FetchPolicy.Decision.SERVE_CACHE, mPolicy.decide(false, true, FRESH));
+        assertEquals(FetchPolicy.Decision.SERVE_CACHE, mPolicy.decide(false, true, STALE));
+        assertEquals(FetchPolicy.Decision.FAIL, mPolicy.decide(true, false, 0));
+    }
+
+    @Test
+    public void treatsCaptivePortalAsOffline() {
+        mState.captivePortal = true;
+        assertFalse(mPolicy.canReachNetwork());
+        assertEquals(FetchPolicy.Decision.SERVE_CACHE, mPolicy.decide(false, true, FRESH));
+        assertEquals(FetchPolicy.Decision.FAIL, mPolicy.decide(true, false, 0));
+    }
+
+    @Test
+    public void defersRecentCacheOnMeteredNetwork() {
+        mState.metered = true;
+        assertEquals(FetchPolicy.Decision.DEFER, mPolicy.decide(false, true, FRESH));
+        assertEquals(FetchPolicy.Decision.DEFER,
+                mPolicy.decide(false, true, FetchPolicy.MAX_DEFERRED_AGE));
+    }
+
+    @Test
+    public void fetchesStaleCacheOnMeteredNetwork() {
+        mState.metered = true;
+        assertEquals(FetchPolicy.Decision.FETCH, mPolicy.decide(false, true, STALE));
+    }
+
+    @Test
+    public void fetchesInteractiveOnMeteredNetwork() {
+        mState.metered = true;
+        assertEquals(FetchPolicy.Decision.FETCH, mPolicy.decide(true, false, 0));
+        assertEquals(FetchPolicy.Decision.FETCH, mPolicy.decide(true, true, FRESH));
+    }
+
+    @Test
+    public void releasesDeferredOnceUnmetered() {
+        mState.metered = true;
+        mPolicy.hold(FetchPolicy.Decision.DEFER, "a", "a1");
+        assertTrue(mPolicy.drainReady().isEmpty());
+        assertEquals(1, mPolicy.getPendingCount());
+
+        mState.metered = false;
+        assertEquals(Arrays.asList("a1"), mPolicy.drainReady());
+        assertEquals(0, mPolicy.getPendingCount());
+    }
+
+    @Test
+    public void releasesOfflineRefreshesOnAnyNetwork() {
+        mState.connected = false;
+        mPolicy.hold(FetchPolicy.Decision.SERVE_CACHE, "a", "a1");
+        assertTrue(mPolicy.drainReady().isEmpty());
+
+        mState.connected = true;
+        mState.metered = true;
+        assertEquals(Arrays.asList("a1"), mPolicy.drainReady());
+    }
+
+    @Test
+    public void mergesRefreshesForTheSameKey() {
+        mState.connected = false;
+        mPolicy.hold(FetchPolicy.Decision.DEFER, "a", "a1");
+        mPolicy.hold(FetchPolicy.Decision.SERVE_CACHE, "a", "a2");
+        // Waiting for any network wins over waiting for an unmetered one
+        mPolicy.hold(FetchPolicy.Decision.DEFER, "a", "a3");
+        mPolicy.hold(FetchPolicy.Decision.SERVE_CACHE, "b", "b1");
+        assertEquals(2, mPolicy.getPendingCount());
+
+        mState.connected = true;
+        assertEquals(Arrays.asList("a2", "b1"), mPolicy.drainReady());
+    }
+}